@@ -0,0 +1,33 @@
+package io.leocad.webcachedimageview;
+
+import java.io.File;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+
+public class DiskWriterTest extends AndroidTestCase {
+
+	private static final long DISK_CACHE_SIZE = 64 * 1024 * 1024;
+
+	public void testWriteLargerThanTheQueueIsCommitted() throws InterruptedException {
+
+		CacheManager cacheMgr = CacheManager.getInstance(getContext(), "disk-writer-test",
+				CacheManager.MODE_DISK, 0.f, DISK_CACHE_SIZE, CacheManager.STORE_RAW);
+
+		// Larger than all the pending writes together can be
+		String url = "http://images.example.com/huge-" + System.nanoTime();
+		byte[] data = new byte[6 * 1024 * 1024];
+		new Random(42).nextBytes(data);
+
+		CacheKey key = new CacheKey(url, 0, 0);
+		cacheMgr.cacheOnDisk(key, data, new DiskEntryMetadata(url, null, null, Long.MAX_VALUE, HttpTransport.LIFETIME_UNKNOWN));
+
+		// Waits for the write to be committed
+		File file = cacheMgr.getDiskFile(key);
+
+		assertNotNull(file);
+		assertEquals(data.length, file.length());
+		assertEquals(0, cacheMgr.getDroppedDiskWriteCount());
+	}
+}
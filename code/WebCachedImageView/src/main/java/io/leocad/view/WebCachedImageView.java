@@ -5,7 +5,12 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.Point;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.Build;
 import android.util.AttributeSet;
 import android.view.Display;
@@ -20,25 +25,43 @@ import android.widget.ImageView;
 import java.lang.ref.WeakReference;
 
 import io.leocad.webcachedimageview.BitmapWorkerTask;
+import io.leocad.webcachedimageview.CacheKey;
 import io.leocad.webcachedimageview.CacheManager;
+import io.leocad.webcachedimageview.LoaderExecutor;
 import io.leocad.webcachedimageview.R;
+import io.leocad.webcachedimageview.TiledImage;
 
 
 public class WebCachedImageView extends ImageView {
 	
-	private static final int[] ATTRS_DIMEN_ANDROID = {android.R.attr.layout_width, android.R.attr.layout_height};
-
 	public CacheManager mCacheMgr;
 	private WeakReference<BitmapWorkerTask> mBitmapWorkerRef;
 	
+	// The size the image is decoded at, resolved when the load starts
 	private int mWidth;
 	private int mHeight;
+
+	// A load waiting for the view to be measured
+	private String mPendingUrl;
+	private int mPendingPriority;
 	
 	private Animation mAppearAnimation;
+	private Bitmap mDisplayedBitmap;
+	// The one that retained mDisplayedBitmap, which may no longer be mCacheMgr
+	private CacheManager mDisplayedBitmapMgr;
+	private String mDisplayedUrl;
+
+	private int mBitmapConfig = CacheKey.CONFIG_ARGB_8888;
+	private boolean mPurgeable;
+
+	private boolean mTiled;
+	private TiledImage mTiledImage;
+	private final Matrix mTileMatrix = new Matrix();
 
 	public WebCachedImageView(Context context) {
 		super(context);
-		init(context, CacheManager.MODE_MEMORY | CacheManager.MODE_DISK, 12.5f, null);
+		init(context, CacheManager.DEFAULT_NAMESPACE, CacheManager.MODE_MEMORY | CacheManager.MODE_DISK, 12.5f,
+				CacheManager.DISK_CACHE_SIZE_AUTO, CacheManager.STORE_RAW);
 	}
 
 	public WebCachedImageView(Context context, AttributeSet attrs) {
@@ -47,45 +70,22 @@ public class WebCachedImageView extends ImageView {
 		TypedArray styledAttrs = context.obtainStyledAttributes(attrs, R.styleable.WebCachedImageView);
 		int mode = styledAttrs.getInt(R.styleable.WebCachedImageView_cache_mode, CacheManager.MODE_MEMORY | CacheManager.MODE_DISK);
 		float memoryFractionToUse = styledAttrs.getFloat(R.styleable.WebCachedImageView_memoryPercentToUse, 12.5f);
+		mTiled = styledAttrs.getBoolean(R.styleable.WebCachedImageView_tiled, false);
+		long diskCacheSize = styledAttrs.getInt(R.styleable.WebCachedImageView_diskCacheSize, 0) * 1024L * 1024L;
+		int storeFormat = styledAttrs.getInt(R.styleable.WebCachedImageView_diskStoreFormat, CacheManager.STORE_RAW);
+		mBitmapConfig = styledAttrs.getInt(R.styleable.WebCachedImageView_bitmapConfig, CacheKey.CONFIG_ARGB_8888);
+		mPurgeable = styledAttrs.getBoolean(R.styleable.WebCachedImageView_purgeable, false);
+		String namespace = styledAttrs.getString(R.styleable.WebCachedImageView_cacheNamespace);
 		styledAttrs.recycle();
 		
-		init(context, mode, memoryFractionToUse, attrs);
+		init(context, namespace == null ? CacheManager.getDefaultNamespace(mode) : namespace, mode, memoryFractionToUse, diskCacheSize, storeFormat);
 	}
 
-	private void init(Context context, int mode, float memoryPercentToUse, AttributeSet attrs) {
+	private void init(Context context, String namespace, int mode, float memoryPercentToUse, long diskCacheSize, int storeFormat) {
 
 		if (!isInEditMode()) {
 			
-			// Get the image dimensions
-			if (attrs != null) {
-				
-				TypedArray styledAttrs = context.obtainStyledAttributes(attrs, ATTRS_DIMEN_ANDROID);
-				
-				try {
-					mWidth = styledAttrs.getDimensionPixelSize(0, ViewGroup.LayoutParams.MATCH_PARENT);
-				} catch (UnsupportedOperationException e) {
-					// This dimension is either "match_parent" or "wrap_content"
-					mWidth = -1;
-				}
-				
-				try {
-					mHeight = styledAttrs.getDimensionPixelSize(1, ViewGroup.LayoutParams.MATCH_PARENT);
-				} catch (UnsupportedOperationException e) {
-					mHeight = -1;
-				}
-				
-				styledAttrs.recycle();
-				
-				// Use the screen dimensions if the imageview's dimensions aren't set.
-				// The image will never de bigger than the screen
-				if (mWidth <= 0 || mHeight <= 0) {
-					Point screenDimensions = getScreenDimensions(context);
-					mWidth = screenDimensions.x;
-					mHeight = screenDimensions.y;
-				}
-			}
-			
-			mCacheMgr = CacheManager.getInstance(context, mode, memoryPercentToUse);
+			mCacheMgr = CacheManager.getInstance(context, namespace, mode, memoryPercentToUse, diskCacheSize, storeFormat);
 			
 			mAppearAnimation = new AlphaAnimation(0.f, 1.f);
 			mAppearAnimation.setDuration(300);
@@ -110,14 +110,240 @@ public class WebCachedImageView extends ImageView {
 	}
 
 	public void setImageUrl(String url) {
+		setImageUrl(url, LoaderExecutor.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * @param priority one of {@link LoaderExecutor#PRIORITY_LOW}, {@link LoaderExecutor#PRIORITY_NORMAL}
+	 * or {@link LoaderExecutor#PRIORITY_HIGH}.
+	 */
+	public void setImageUrl(String url, int priority) {
 
-		setAlphaCompat(0.f); // TODO Add placeholder
-		
 		if (url != null && cancelPotentialWork(url)) {
-			final BitmapWorkerTask bitmapWorkerTask = new BitmapWorkerTask(this);
+
+			mPendingUrl = null;
+			clearDisplayedUrl();
+
+			if (!resolveTargetSize()) {
+				// Not measured yet. The load starts in onSizeChanged()
+				setAlphaCompat(0.f); // TODO Add placeholder
+				mBitmapWorkerRef = null;
+				mPendingUrl = url;
+				mPendingPriority = priority;
+				return;
+			}
+
+			// Served right away if it's in memory, even while the loader is paused
+			CacheKey key = new CacheKey(url, mWidth, mHeight, mBitmapConfig, mPurgeable);
+			Bitmap cached = mCacheMgr.peekAndRetainOnMemory(key);
+			if (cached != null) {
+				mBitmapWorkerRef = null;
+				setImageBitmap(cached);
+				// setImageBitmap() retains it for as long as it's displayed
+				mCacheMgr.releaseBitmap(cached);
+				mDisplayedUrl = url;
+				setAlphaCompat(1.f);
+				mCacheMgr.reportMemoryHit(key);
+				mCacheMgr.reportImageDisplayed();
+				return;
+			}
+
+			setAlphaCompat(0.f); // TODO Add placeholder
+
+			final BitmapWorkerTask bitmapWorkerTask = new BitmapWorkerTask(this, key, mCacheMgr);
 			mBitmapWorkerRef = new WeakReference<BitmapWorkerTask>(bitmapWorkerTask);
-			bitmapWorkerTask.execute(url, mCacheMgr, mWidth, mHeight);
+			bitmapWorkerTask.execute(priority);
+
+		} else if (url == null) {
+			mPendingUrl = null;
+			clearDisplayedUrl();
+			setAlphaCompat(0.f); // TODO Add placeholder
+		}
+	}
+
+	/**
+	 * Caches the next images in another namespace, created with the default
+	 * configuration if it doesn't exist yet.
+	 *
+	 * @see CacheManager#getInstance(Context, String, int, float, long, int)
+	 */
+	public void setCacheNamespace(String namespace) {
+
+		if (!isInEditMode()) {
+			mCacheMgr = CacheManager.getInstance(getContext(), namespace);
+		}
+	}
+
+	/**
+	 * Sets the config the next images are decoded into. RGB_565 takes half the memory
+	 * of ARGB_8888, so twice as many images fit in the memory cache. It's meant for
+	 * opaque images, like photos: images with transparency are still decoded into ARGB_8888.
+	 *
+	 * @param config {@link Bitmap.Config#ARGB_8888} or {@link Bitmap.Config#RGB_565}.
+	 */
+	public void setBitmapConfig(Bitmap.Config config) {
+
+		if (config == Bitmap.Config.RGB_565) {
+			mBitmapConfig = CacheKey.CONFIG_RGB_565;
+		} else if (config == Bitmap.Config.ARGB_8888) {
+			mBitmapConfig = CacheKey.CONFIG_ARGB_8888;
+		} else {
+			throw new IllegalArgumentException("Only ARGB_8888 and RGB_565 are supported, not " + config);
+		}
+	}
+
+	public Bitmap.Config getBitmapConfig() {
+		return mBitmapConfig == CacheKey.CONFIG_RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+	}
+
+	/**
+	 * Before Honeycomb, decodes the next images purgeable: their pixels live outside the
+	 * heap and can be freed by the system, to be decoded again when they're drawn.
+	 * It has no effect on newer versions.
+	 */
+	public void setPurgeable(boolean purgeable) {
+		mPurgeable = purgeable;
+	}
+
+	public boolean isPurgeable() {
+		return mPurgeable;
+	}
+
+	/**
+	 * In tiled mode, the parts of the image that are magnified beyond the resolution of the
+	 * loaded bitmap are decoded again from the original image, in tiles at the displayed resolution.
+	 * It's meant for zoomable images, and it needs the disk cache and API 10.
+	 */
+	public void setTiled(boolean tiled) {
+
+		mTiled = tiled;
+
+		if (!tiled) {
+			releaseTiledImage();
 		}
+		invalidate();
+	}
+
+	public boolean isTiled() {
+		return mTiled;
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+
+		if (!mTiled || mDisplayedUrl == null || mCacheMgr == null || !TiledImage.isSupported()) {
+			return;
+		}
+
+		Drawable drawable = getDrawable();
+		if (drawable == null) {
+			return;
+		}
+
+		if (mTiledImage == null) {
+			mTiledImage = new TiledImage(mCacheMgr, mDisplayedUrl, mBitmapConfig, this);
+		}
+
+		int contentWidth = getWidth() - getPaddingLeft() - getPaddingRight();
+		int contentHeight = getHeight() - getPaddingTop() - getPaddingBottom();
+		int drawableWidth = drawable.getIntrinsicWidth();
+		int drawableHeight = drawable.getIntrinsicHeight();
+
+		if (getScaleType() == ScaleType.FIT_XY) {
+			// The drawable is stretched to the bounds instead of drawn with the image matrix
+			mTileMatrix.setScale((float) contentWidth / drawableWidth, (float) contentHeight / drawableHeight);
+		} else {
+			mTileMatrix.set(getImageMatrix());
+		}
+
+		int saveCount = canvas.save();
+		canvas.translate(getPaddingLeft(), getPaddingTop());
+		canvas.clipRect(0, 0, contentWidth, contentHeight);
+		mTiledImage.draw(canvas, mTileMatrix, drawableWidth, drawableHeight, contentWidth, contentHeight);
+		canvas.restoreToCount(saveCount);
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+
+		// The tiles are decoded again from the disk when the view is drawn next
+		releaseTiledImage();
+	}
+
+	private void clearDisplayedUrl() {
+
+		// Hidden until the next image arrives, so there is nothing to tile
+		mDisplayedUrl = null;
+		releaseTiledImage();
+	}
+
+	private void releaseTiledImage() {
+
+		if (mTiledImage != null) {
+			mTiledImage.recycle();
+			mTiledImage = null;
+		}
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+
+		if (mPendingUrl != null && w > 0 && h > 0) {
+			String url = mPendingUrl;
+			mPendingUrl = null;
+			setImageUrl(url, mPendingPriority);
+		}
+	}
+
+	/**
+	 * Picks the size to decode the image at: the view's content size if it's known,
+	 * either measured or fixed in its layout params. Images that aren't scaled to the
+	 * view (CENTER and MATRIX scale types) or that are wrapped are only bounded by the screen.
+	 *
+	 * @return false if the size can only be known after the view is measured.
+	 */
+	private boolean resolveTargetSize() {
+
+		ScaleType scaleType = getScaleType();
+		if (scaleType == ScaleType.CENTER || scaleType == ScaleType.MATRIX) {
+			// The image will never be bigger than the screen
+			Point screenDimensions = getScreenDimensions(getContext());
+			mWidth = screenDimensions.x;
+			mHeight = screenDimensions.y;
+			return true;
+		}
+
+		ViewGroup.LayoutParams params = getLayoutParams();
+		int width = resolveDimension(getWidth(), params == null ? 0 : params.width, getPaddingLeft() + getPaddingRight(), true);
+		int height = resolveDimension(getHeight(), params == null ? 0 : params.height, getPaddingTop() + getPaddingBottom(), false);
+
+		if (width <= 0 || height <= 0) {
+			return false;
+		}
+
+		mWidth = width;
+		mHeight = height;
+		return true;
+	}
+
+	private int resolveDimension(int measured, int layoutParam, int padding, boolean horizontal) {
+
+		if (measured > 0 && layoutParam != ViewGroup.LayoutParams.WRAP_CONTENT) {
+			return Math.max(1, measured - padding);
+
+		} else if (layoutParam > 0) {
+			return Math.max(1, layoutParam - padding);
+
+		} else if (layoutParam == ViewGroup.LayoutParams.WRAP_CONTENT) {
+			// It will grow to fit the image, up to the screen size
+			Point screenDimensions = getScreenDimensions(getContext());
+			return horizontal ? screenDimensions.x : screenDimensions.y;
+		}
+
+		return 0;
 	}
 	
 	@SuppressLint("NewApi")
@@ -179,7 +405,47 @@ public class WebCachedImageView extends ImageView {
 	
 	@Override
 	public void setImageBitmap(Bitmap bm) {
+		// Goes through setImageDrawable()
 		super.setImageBitmap(bm);
+
+		// Only the bitmaps delivered by the current task are known to come from an URL
+		BitmapWorkerTask task = getBitmapWorkerTask();
+		mDisplayedUrl = task != null ? task.url : null;
+
 		startAnimation(mAppearAnimation);
 	}
+
+	@Override
+	public void setImageDrawable(Drawable drawable) {
+		super.setImageDrawable(drawable);
+		setDisplayedBitmap(drawable instanceof BitmapDrawable ? ((BitmapDrawable) drawable).getBitmap() : null);
+	}
+
+	@Override
+	public void setImageResource(int resId) {
+		super.setImageResource(resId);
+		setDisplayedBitmap(null);
+	}
+
+	@Override
+	public void setImageURI(Uri uri) {
+		super.setImageURI(uri);
+		setDisplayedBitmap(null);
+	}
+
+	private void setDisplayedBitmap(Bitmap bitmap) {
+
+		// Keep the displayed bitmap from being reused by other decodes
+		if (mCacheMgr != null) {
+			mCacheMgr.retainBitmap(bitmap);
+		}
+		if (mDisplayedBitmapMgr != null) {
+			mDisplayedBitmapMgr.releaseBitmap(mDisplayedBitmap);
+		}
+		mDisplayedBitmap = bitmap;
+		mDisplayedBitmapMgr = bitmap != null ? mCacheMgr : null;
+
+		mDisplayedUrl = null;
+		releaseTiledImage();
+	}
 }
\ No newline at end of file
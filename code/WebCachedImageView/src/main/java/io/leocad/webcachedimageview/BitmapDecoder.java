@@ -0,0 +1,155 @@
+package io.leocad.webcachedimageview;
+
+import java.io.IOException;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapFactory.Options;
+import android.os.Build;
+
+
+/**
+ * Decodes bitmaps sampled down to the size they will be displayed at, in the config of their key.
+ */
+final class BitmapDecoder {
+
+	/**
+	 * Something that can be decoded more than once, like a byte array or a disk cache entry.
+	 */
+	interface Source {
+		/**
+		 * @return the decoded bitmap, or null. Must return null, leaving options.outWidth untouched,
+		 * if the source no longer exists.
+		 */
+		Bitmap decode(Options options) throws IOException;
+	}
+
+	private BitmapDecoder() {
+	}
+
+	static Bitmap decodeSampledBitmap(byte[] data, int reqWidth, int reqHeight, int bitmapConfig, boolean purgeable, BitmapPool pool) {
+		return decodeSampledBitmap(data, reqWidth, reqHeight, bitmapConfig, purgeable, pool, new Options());
+	}
+
+	static Bitmap decodeSampledBitmap(final byte[] data, int reqWidth, int reqHeight, int bitmapConfig, boolean purgeable,
+			BitmapPool pool, Options options) {
+
+		try {
+			return decodeSampledBitmap(new Source() {
+				@Override
+				public Bitmap decode(Options options) {
+					return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+				}
+			}, reqWidth, reqHeight, bitmapConfig, purgeable, pool, options);
+
+		} catch (IOException e) {
+			// Decoding from memory doesn't throw it
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes the source twice: first only its bounds, and then sampled down to the requested size.
+	 * If a pool is given, the bitmap may be decoded into the memory of a pooled bitmap.
+	 *
+	 * @param bitmapConfig {@link CacheKey#CONFIG_ARGB_8888} or {@link CacheKey#CONFIG_RGB_565}.
+	 * Images with transparency are still decoded into ARGB_8888.
+	 * @param purgeable before Honeycomb, decodes a bitmap whose pixels can be purged and
+	 * decoded again when it's drawn, so they don't count against the heap.
+	 * @param options new options to decode with. Another thread can cancel the decode with
+	 * their requestCancelDecode(): it's skipped if it didn't start yet, and stopped midway
+	 * before Nougat. It then returns null.
+	 */
+	@SuppressLint("NewApi")
+	@SuppressWarnings("deprecation")
+	static Bitmap decodeSampledBitmap(Source source, int reqWidth, int reqHeight, int bitmapConfig, boolean purgeable,
+			BitmapPool pool, Options options) throws IOException {
+
+	    // First decode with inJustDecodeBounds=true to check dimensions
+	    options.inJustDecodeBounds = true;
+	    source.decode(options);
+
+	    if (options.outWidth <= 0 || options.outHeight <= 0 || options.mCancel) {
+	    	// Gone, not an image, or cancelled
+	    	return null;
+	    }
+
+	    // Calculate inSampleSize
+	    options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+	    // Decode bitmap with inSampleSize set
+	    options.inJustDecodeBounds = false;
+	    options.inPreferredConfig = toConfig(bitmapConfig);
+
+	    if (purgeable && Build.VERSION.SDK_INT < 11) {
+	    	// Ignored from Honeycomb on, where bitmaps live in the heap anyway
+	    	options.inPurgeable = true;
+	    	options.inInputShareable = true;
+	    }
+
+	    // Only touched inside the guard: the field doesn't exist before Honeycomb
+	    Bitmap inBitmap = null;
+
+	    if (BitmapPool.isReuseSupported()) {
+	    	// Mutable, so it can be reused when it leaves the memory cache
+	    	options.inMutable = true;
+
+	    	if (pool != null) {
+	    		int sampleSize = Math.max(1, options.inSampleSize);
+	    		inBitmap = pool.get(
+	    				divideRoundingUp(options.outWidth, sampleSize),
+	    				divideRoundingUp(options.outHeight, sampleSize),
+	    				sampleSize, options.inPreferredConfig);
+	    		options.inBitmap = inBitmap;
+	    	}
+	    }
+
+	    if (inBitmap == null) {
+	    	return source.decode(options);
+	    }
+
+	    Bitmap bitmap;
+	    try {
+	    	bitmap = source.decode(options);
+	    } catch (IllegalArgumentException e) {
+	    	// The pooled bitmap can't hold this image after all
+	    	bitmap = null;
+	    }
+
+	    if (bitmap == null && !options.mCancel) {
+	    	options.inBitmap = null;
+	    	bitmap = source.decode(options);
+	    }
+
+	    return bitmap;
+	}
+	
+	static Bitmap.Config toConfig(int bitmapConfig) {
+		return bitmapConfig == CacheKey.CONFIG_RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+	}
+
+	static int calculateInSampleSize(Options options, int reqWidth, int reqHeight) {
+		// Raw height and width of image
+		final int height = options.outHeight;
+		final int width = options.outWidth;
+		int inSampleSize = 1;
+
+		if (height > reqHeight || width > reqWidth) {
+
+			// Calculate ratios of height and width to requested height and width
+			final int heightRatio = Math.round((float) height / (float) reqHeight);
+			final int widthRatio = Math.round((float) width / (float) reqWidth);
+
+			// Choose the smallest ratio as inSampleSize value, this will guarantee
+			// a final image with both dimensions larger than or equal to the
+			// requested height and width.
+			inSampleSize = heightRatio < widthRatio ? heightRatio : widthRatio;
+		}
+
+		return inSampleSize;
+	}
+
+	private static int divideRoundingUp(int dimension, int inSampleSize) {
+		return (dimension + inSampleSize - 1) / inSampleSize;
+	}
+}
@@ -0,0 +1,249 @@
+package io.leocad.webcachedimageview;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+
+/**
+ * Bitmaps evicted from the memory cache, kept around so their memory can be reused
+ * by the next decodes through {@link android.graphics.BitmapFactory.Options#inBitmap}
+ * instead of being garbage collected. Bitmaps are bucketed by their allocation size,
+ * and the pool has its own budget in bytes.
+ * Reusing bitmaps is only possible on API 11 and above.
+ */
+public class BitmapPool {
+
+	// Don't reuse a bitmap more than this many times larger than needed
+	private static final int MAX_SIZE_MULTIPLE = 4;
+
+	private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets = new TreeMap<Integer, LinkedList<Bitmap>>();
+	private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+	// Bitmaps still being delivered or displayed can't be reused
+	private final WeakHashMap<Bitmap, Integer> mInUse = new WeakHashMap<Bitmap, Integer>();
+
+	private int mMaxSize;
+	private int mSize;
+
+	private int mHitCount;
+	private int mMissCount;
+
+	/**
+	 * @param maxSize the maximum sum of the bitmaps' sizes, in bytes.
+	 */
+	public BitmapPool(int maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	public static boolean isReuseSupported() {
+		return Build.VERSION.SDK_INT >= 11;
+	}
+
+	/**
+	 * Offers a bitmap that is no longer cached. It's ignored if it can't be reused.
+	 */
+	public synchronized void put(Bitmap bitmap) {
+
+		if (!isReuseSupported() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || mInUse.containsKey(bitmap)) {
+			return;
+		}
+
+		int size = getAllocationSize(bitmap);
+		if (size > mMaxSize) {
+			return;
+		}
+
+		LinkedList<Bitmap> bucket = mBuckets.get(size);
+		if (bucket == null) {
+			bucket = new LinkedList<Bitmap>();
+			mBuckets.put(size, bucket);
+		}
+
+		bucket.addLast(bitmap);
+		mOrder.addLast(bitmap);
+		mSize += size;
+
+		trimToSize(mMaxSize);
+	}
+
+	/**
+	 * Removes and returns a bitmap that can be reused to decode an image of the given
+	 * dimensions, or null if there is none.
+	 *
+	 * @param inSampleSize the sample size of the decode. Before API 19, only decodes
+	 * with no sampling can reuse bitmaps.
+	 */
+	@SuppressLint("NewApi")
+	public synchronized Bitmap get(int width, int height, int inSampleSize, Bitmap.Config config) {
+
+		if (!isReuseSupported() || width <= 0 || height <= 0) {
+			return null;
+		}
+
+		if (config == null) {
+			config = Bitmap.Config.ARGB_8888;
+		}
+
+		if (Build.VERSION.SDK_INT >= 19) {
+			// Any bitmap with enough bytes will do
+			int needed = width * height * getBytesPerPixel(config);
+			Map.Entry<Integer, LinkedList<Bitmap>> entry = mBuckets.ceilingEntry(needed);
+
+			while (entry != null && entry.getKey() <= needed * MAX_SIZE_MULTIPLE) {
+				Bitmap bitmap = removeFromBucket(entry.getValue(), 0, 0, config);
+				if (bitmap != null) {
+					return bitmap;
+				}
+
+				entry = mBuckets.higherEntry(entry.getKey());
+			}
+
+		} else if (inSampleSize == 1) {
+			// Must have the very same dimensions
+			LinkedList<Bitmap> bucket = mBuckets.get(width * height * getBytesPerPixel(config));
+			if (bucket != null) {
+				Bitmap bitmap = removeFromBucket(bucket, width, height, config);
+				if (bitmap != null) {
+					return bitmap;
+				}
+			}
+		}
+
+		mMissCount++;
+		return null;
+	}
+
+	private Bitmap removeFromBucket(LinkedList<Bitmap> bucket, int width, int height, Bitmap.Config config) {
+
+		Iterator<Bitmap> it = bucket.iterator();
+		while (it.hasNext()) {
+			Bitmap bitmap = it.next();
+
+			if (bitmap.getConfig() == config
+					&& (width == 0 || (bitmap.getWidth() == width && bitmap.getHeight() == height))) {
+
+				it.remove();
+				int size = getAllocationSize(bitmap);
+				if (bucket.isEmpty()) {
+					mBuckets.remove(size);
+				}
+
+				mOrder.remove(bitmap);
+				mSize -= size;
+				mHitCount++;
+				return bitmap;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Drops the oldest bitmaps until the pool is at or below the requested size, in bytes.
+	 */
+	public synchronized void trimToSize(int maxSize) {
+
+		while (mSize > maxSize && !mOrder.isEmpty()) {
+			Bitmap bitmap = mOrder.removeFirst();
+			int size = getAllocationSize(bitmap);
+
+			LinkedList<Bitmap> bucket = mBuckets.get(size);
+			bucket.remove(bitmap);
+			if (bucket.isEmpty()) {
+				mBuckets.remove(size);
+			}
+
+			mSize -= size;
+		}
+	}
+
+	/**
+	 * Changes the maximum size of the pool, in bytes, dropping the oldest bitmaps if it shrinks.
+	 */
+	public synchronized void resize(int maxSize) {
+
+		mMaxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public void clear() {
+		trimToSize(0);
+	}
+
+	/**
+	 * Marks a bitmap as in use, so it's not reused while it's still displayed.
+	 * Every call must be balanced with {@link #release(Bitmap)}. A bitmap that may be
+	 * evicted meanwhile must be looked up and retained while holding this pool's lock.
+	 */
+	public synchronized void retain(Bitmap bitmap) {
+
+		Integer count = mInUse.get(bitmap);
+		mInUse.put(bitmap, count == null ? 1 : count + 1);
+	}
+
+	public synchronized void release(Bitmap bitmap) {
+
+		Integer count = mInUse.get(bitmap);
+
+		if (count == null || count <= 1) {
+			mInUse.remove(bitmap);
+		} else {
+			mInUse.put(bitmap, count - 1);
+		}
+	}
+
+	/**
+	 * @return the sum of the sizes of the pooled bitmaps, in bytes.
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	public synchronized int maxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * @return the number of times {@link #get} returned a bitmap to be reused.
+	 */
+	public synchronized int hitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int missCount() {
+		return mMissCount;
+	}
+
+	@SuppressLint("NewApi")
+	static int getAllocationSize(Bitmap bitmap) {
+
+		if (Build.VERSION.SDK_INT >= 19) {
+			return bitmap.getAllocationByteCount();
+		}
+
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	private static int getBytesPerPixel(Bitmap.Config config) {
+
+		if (config == Bitmap.Config.ARGB_8888) {
+			return 4;
+		} else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+			return 2;
+		}
+
+		return 1;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("BitmapPool[maxSize=%d,size=%d,hits=%d,misses=%d]",
+				mMaxSize, mSize, mHitCount, mMissCount);
+	}
+}
@@ -1,70 +1,498 @@
 package io.leocad.webcachedimageview;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-
 import java.io.IOException;
-import java.io.InputStream;
 import java.lang.ref.WeakReference;
 
 import io.leocad.view.WebCachedImageView;
 
 
-public class BitmapWorkerTask extends AsyncTask<Object, Void, Bitmap> {
+public class BitmapWorkerTask implements Runnable {
+
+	private static Handler sMainHandler;
 
 	private WeakReference<WebCachedImageView> mImageViewReference;
-	public String url;
+	public final String url;
+	private final CacheKey mKey;
+	private final CacheManager mCacheMgr;
+
+	private volatile boolean mCancelled;
+	private Thread mRunner;
+	private volatile long mExecuteTime;
+	private volatile int mPriority = LoaderExecutor.PRIORITY_NORMAL;
+	private LoadMetrics mMetrics; // Used by the thread running the load, then by the one completing it
+	private volatile Options mDecodeOptions; // Of the current decode, to cancel it
+	private volatile InFlightLoad mPerformedLoad; // Other views may wait for its decode
+	private volatile Waiter mWaiter; // Parked on the load another task performs
+	private volatile HttpTransport.CancellationSignal mCancellation; // Of the running download
+
+	public BitmapWorkerTask(WebCachedImageView iv, String url, CacheManager cacheMgr, int width, int height) {
+		this(iv, url, cacheMgr, width, height, CacheKey.CONFIG_ARGB_8888, false);
+	}
 
-	public BitmapWorkerTask(WebCachedImageView iv) {
+	/**
+	 * @param bitmapConfig {@link CacheKey#CONFIG_ARGB_8888} or {@link CacheKey#CONFIG_RGB_565}.
+	 * @param purgeable whether the bitmap may be decoded purgeable, before Honeycomb.
+	 */
+	public BitmapWorkerTask(WebCachedImageView iv, String url, CacheManager cacheMgr, int width, int height,
+			int bitmapConfig, boolean purgeable) {
+		this(iv, new CacheKey(url, width, height, bitmapConfig, purgeable), cacheMgr);
+	}
+
+	/**
+	 * @param key the key the view already looked up the memory cache with.
+	 */
+	public BitmapWorkerTask(WebCachedImageView iv, CacheKey key, CacheManager cacheMgr) {
 		mImageViewReference = new WeakReference<WebCachedImageView>(iv);
+		this.url = key.url;
+		mKey = key;
+		mCacheMgr = cacheMgr;
+	}
+
+	/**
+	 * Starts loading, or defers the load if the loader is paused.
+	 */
+	public void execute(int priority) {
+		mExecuteTime = SystemClock.uptimeMillis();
+		mPriority = priority;
+		LoaderExecutor.getInstance().executeOrDefer(this, mImageViewReference.get(), priority);
+	}
+
+	/**
+	 * Cancels the load. A running download is aborted right away, even while it connects,
+	 * unless another view waits for the same image, and the image is neither decoded nor cached.
+	 * If mayInterruptIfRunning is true, a running decode is stopped too, and the loader
+	 * thread is interrupted, unless another view waits for that decode.
+	 */
+	@SuppressWarnings("deprecation")
+	public void cancel(boolean mayInterruptIfRunning) {
+
+		mCancelled = true;
+
+		Waiter waiter = mWaiter;
+		if (waiter != null) {
+			waiter.cancel();
+		}
+
+		// Even while it connects or waits for the response, unless another view waits for it
+		HttpTransport.CancellationSignal cancellation = mCancellation;
+		if (cancellation != null) {
+			cancellation.abortIfCancelled();
+		}
+
+		// An interrupt would also break a shared decode, e.g. its reads from the disk
+		if (mayInterruptIfRunning && !isDecodeShared()) {
+			Options decodeOptions = mDecodeOptions;
+			if (decodeOptions != null) {
+				decodeOptions.requestCancelDecode();
+			}
+
+			synchronized (this) {
+				if (mRunner != null) {
+					mRunner.interrupt();
+				}
+			}
+		}
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * @return true if the task wasn't cancelled and its view still waits for it.
+	 */
+	boolean isStillBound() {
+
+		if (mCancelled) {
+			return false;
+		}
+
+		WebCachedImageView imageView = mImageViewReference.get();
+		return imageView != null && imageView.getBitmapWorkerTask() == this;
 	}
 
 	@Override
-	protected Bitmap doInBackground(Object... params) {
+	public void run() {
+
+		// While the disk cache opens, only images already in memory can be served. The
+		// others wait for the disk without holding this thread, since they may be stored there
+		if (!mCancelled && !mCacheMgr.isDiskCacheReady() && mCacheMgr.peekOnMemory(mKey) == null
+				&& mCacheMgr.runWhenDiskCacheReady(new Runnable() {
+					@Override
+					public void run() {
+						LoaderExecutor.getInstance().execute(BitmapWorkerTask.this, mPriority);
+					}
+				})) {
+			return;
+		}
+
+		Waiter waiter = new Waiter();
+		Bitmap bitmap = load(waiter);
+
+		if (waiter.parked) {
+			// Delivered when the other task completes the load
+			return;
+		}
+
+		deliver(bitmap);
+	}
+
+	/**
+	 * @param bitmap retained, so it isn't reused until it's delivered.
+	 */
+	private void deliver(final Bitmap bitmap) {
+
+		getMainHandler().post(new Runnable() {
+			@Override
+			public void run() {
+				onPostExecute(bitmap);
+			}
+		});
+	}
+
+	/**
+	 * Loads the bitmap on the calling thread, without delivering it to the view.
+	 * If another task is already loading it, this one doesn't wait for it.
+	 *
+	 * @return the bitmap, or null if it couldn't be loaded, another task is loading it,
+	 * or the task was cancelled. It's retained, so it must be released with
+	 * {@link CacheManager#releaseBitmap(Bitmap)}.
+	 */
+	Bitmap loadSynchronously() {
+		return load(null);
+	}
+
+	/**
+	 * @param waiter parked on the load if another task performs it, or null not to wait for it.
+	 */
+	private Bitmap load(Waiter waiter) {
+
+		long startTime = SystemClock.uptimeMillis();
+		mMetrics = new LoadMetrics(mKey);
+		if (mExecuteTime != 0) {
+			mMetrics.queueWaitMillis = startTime - mExecuteTime;
+		}
+
+		if (mCancelled) {
+			finishMetrics(null, startTime);
+			return null;
+		}
+
+		synchronized (this) {
+			mRunner = Thread.currentThread();
+		}
+
+		if (waiter != null) {
+			waiter.startTime = startTime;
+		}
 
-		url = (String) params[0];
-		CacheManager cacheMgr = (CacheManager) params[1];
-		int width = (Integer) params[2];
-		int height = (Integer) params[3];
 		Bitmap bitmap = null;
+		try {
+			bitmap = doInBackground(mCacheMgr, mKey, waiter);
+			return bitmap;
+
+		} finally {
+			if (waiter == null || !waiter.parked) {
+				finishMetrics(bitmap, startTime);
+			}
+
+			synchronized (this) {
+				// Once parked, the task may already run again on another thread
+				if (mRunner == Thread.currentThread()) {
+					mRunner = null;
+				}
+			}
+			// Don't leak an interruption to the next load on this thread
+			Thread.interrupted();
+		}
+	}
+
+	private void finishMetrics(Bitmap bitmap, long startTime) {
 
-		// Check for cached versions
-		if (
-				// First, check in memory
-				((bitmap = cacheMgr.getCachedOnMemory(url, width, height)) != null)
-				// Then, check in disk
-				|| ((bitmap = cacheMgr.getCachedOnDisk(url, width, height)) != null)
+		if (bitmap == null) {
+			mMetrics.source = LoadMetrics.SOURCE_NONE;
+		}
+		mMetrics.cancelled = mCancelled;
+		mMetrics.loadMillis = SystemClock.uptimeMillis() - startTime;
+
+		mCacheMgr.reportLoad(mMetrics);
+	}
+
+	private static synchronized Handler getMainHandler() {
+
+		if (sMainHandler == null) {
+			sMainHandler = new Handler(Looper.getMainLooper());
+		}
+
+		return sMainHandler;
+	}
+
+	private Bitmap doInBackground(CacheManager cacheMgr, CacheKey key, Waiter waiter) {
 
-			) {
+		Bitmap bitmap = null;
+
+		// First, check in memory
+		if ((bitmap = cacheMgr.getAndRetainOnMemory(key)) != null) {
+			mMetrics.source = LoadMetrics.SOURCE_MEMORY;
 			return bitmap;
 		}
 
-		// No cached versions. Download it
-		try {
-			bitmap = decodeSampledBitmapFromUrl(url, width, height);
+		// Then, check in disk, as long as the stored copy is still fresh
+		DiskEntryMetadata metadata = cacheMgr.getDiskMetadata(key);
+		if (metadata != null && metadata.isFresh(System.currentTimeMillis())
+				&& (bitmap = decodeFromDisk(cacheMgr, key)) != null) {
 
-		} catch (IOException e) {
-			Log.e("WebCachedImageView", "Can't download image at " + url, e);
+			mMetrics.source = LoadMetrics.SOURCE_DISK;
+			// Before it's cached, since it could be evicted and pooled right away
+			cacheMgr.retainBitmap(bitmap);
+			cacheMgr.cacheOnMemory(key, bitmap);
+			return bitmap;
 		}
 
-		// And cache it
-		if (bitmap != null) {
-			cacheMgr.cacheOnMemory(url, bitmap, width, height);
-			cacheMgr.cacheOnDisk(url, bitmap, width, height);
+		if (mCancelled) {
+			// Don't download what nobody will see
+			mMetrics.decodeSkipped = true;
+			return null;
 		}
 
+		// Not cached, or stale. Download or revalidate it, or wait
+		// for another task that is already doing it
+		InFlightLoad load = cacheMgr.attachToLoad(key);
+
+		if (load.claim()) {
+			try {
+				return performLoad(load, cacheMgr, key, metadata);
+			} finally {
+				cacheMgr.detachFromLoad(load);
+			}
+		}
+
+		if (waiter != null && waiter.park(load)) {
+			// This thread is free for other tasks meanwhile
+			return null;
+		}
+
+		if (waiter == null) {
+			cacheMgr.detachFromLoad(load);
+			return null;
+		}
+
+		// Completed in the meantime
+		if (load.isAbandoned()) {
+			cacheMgr.detachFromLoad(load);
+			return mCancelled ? null : doInBackground(cacheMgr, key, waiter);
+		}
+
+		// Not necessarily cached on memory. The load keeps it retained while this task is attached
+		bitmap = load.getResult();
+		cacheMgr.retainBitmap(bitmap);
+		cacheMgr.detachFromLoad(load);
+
+		mMetrics.source = LoadMetrics.SOURCE_SHARED;
 		return bitmap;
 	}
 
-	@Override
-	protected void onPostExecute(Bitmap bitmap) {
+	/**
+	 * Waits for the load another task performs, without holding a loader thread.
+	 */
+	private class Waiter implements InFlightLoad.Callback {
+
+		long startTime;
+		boolean parked; // Only used by the thread that parks it
+		private InFlightLoad mLoad;
+
+		boolean park(InFlightLoad load) {
+
+			mLoad = load;
+			mWaiter = this;
+			parked = load.whenComplete(this);
+			return parked;
+		}
+
+		@Override
+		public void onLoadComplete(InFlightLoad load, Bitmap bitmap) {
+
+			if (bitmap == null && load.isAbandoned() && !mCancelled) {
+				mCacheMgr.detachFromLoad(load);
+				// The task performing it was cancelled. This one still needs the image
+				LoaderExecutor.getInstance().execute(BitmapWorkerTask.this, mPriority);
+				return;
+			}
+
+			// The load keeps it retained while this task is attached
+			mCacheMgr.retainBitmap(bitmap);
+			mCacheMgr.detachFromLoad(load);
+			mMetrics.source = LoadMetrics.SOURCE_SHARED;
+			finishMetrics(bitmap, startTime);
+			deliver(bitmap);
+		}
+
+		void cancel() {
+
+			if (mLoad.removeCallback(this)) {
+				// Not waiting anymore, so the other task may give up on the download
+				mCacheMgr.detachFromLoad(mLoad);
+				finishMetrics(null, startTime);
+			}
+		}
+	}
+
+	/**
+	 * @param stored the metadata of the stale copy stored on disk, or null if there is none.
+	 */
+	private Bitmap performLoad(final InFlightLoad load, final CacheManager cacheMgr, CacheKey key, DiskEntryMetadata stored) {
+
+		// Only give up if no other view is waiting for this image
+		HttpTransport.CancellationSignal cancellation = new HttpTransport.CancellationSignal() {
+			@Override
+			public boolean isCancelled() {
+				return mCancelled && !cacheMgr.isLoadShared(load);
+			}
+		};
+		mCancellation = cancellation;
+
+		mPerformedLoad = load;
+		Bitmap bitmap = null;
+		try {
+			// Another task may have finished this load while we were checking the caches
+			if ((bitmap = cacheMgr.getAndRetainOnMemory(key)) != null) {
+				mMetrics.source = LoadMetrics.SOURCE_MEMORY;
+				return bitmap;
+			}
+
+			try {
+				// A stale copy is revalidated with a conditional request
+				long fetchTime = SystemClock.uptimeMillis();
+				HttpTransport.Response response = stored == null
+						? cacheMgr.getTransport().fetch(url, null, null, cancellation)
+						: cacheMgr.getTransport().fetch(url, stored.etag, stored.lastModified, cancellation);
+				mMetrics.networkMillis = SystemClock.uptimeMillis() - fetchTime;
+
+				// Cancelled after the body was read. It's still neither decoded nor stored
+				if (isCancelled() && cacheMgr.abandonLoadIfUnused(load)) {
+					mMetrics.decodeSkipped = true;
+					return null;
+				}
+
+				if (response.isNotModified()) {
+					// The stored copy is still good. Only its freshness changes
+					cacheMgr.updateDiskMetadata(key, stored.revalidated(response));
+					bitmap = decodeFromDisk(cacheMgr, key);
+					mMetrics.source = LoadMetrics.SOURCE_REVALIDATED;
+
+				} else {
+					mMetrics.bytesDownloaded = response.body.length;
+
+					// Keep the original bytes on disk, so any size can be sampled from them later.
+					// It's only queued: the image is displayed without waiting for the disk
+					cacheMgr.cacheOnDisk(key, response.body, DiskEntryMetadata.fromResponse(url, response));
+
+					// Download the image only once. Both decoding passes read from this local copy
+					long decodeTime = SystemClock.uptimeMillis();
+					bitmap = BitmapDecoder.decodeSampledBitmap(response.body, key.width, key.height,
+								key.bitmapConfig, key.purgeable, cacheMgr.getBitmapPool(), newDecodeOptions());
+					recordDecode(bitmap, decodeTime);
+					mMetrics.source = LoadMetrics.SOURCE_NETWORK;
+				}
+
+			} catch (HttpTransport.CancelledException e) {
+				// The download was aborted. Anyone who attached meanwhile starts over
+				if (e.bytesSkipped > 0) {
+					mMetrics.bytesSaved = e.bytesSkipped;
+				}
+				mMetrics.decodeSkipped = true;
+				cacheMgr.abandonLoad(load);
+				return null;
+
+			} catch (IOException e) {
+				Log.e("WebCachedImageView", "Can't download image at " + url, e);
+
+				if (stored != null) {
+					// A stale image is better than no image, e.g. when offline
+					bitmap = decodeFromDisk(cacheMgr, key);
+					mMetrics.source = LoadMetrics.SOURCE_DISK;
+				}
+			}
+
+			if (bitmap == null && isDecodeCancelled()) {
+				// The waiters decode it themselves, from the copy queued to the disk
+				mMetrics.decodeSkipped = true;
+				cacheMgr.abandonLoad(load);
+				return null;
+			}
+
+			// And cache it
+			if (bitmap != null) {
+				cacheMgr.retainBitmap(bitmap);
+				cacheMgr.cacheOnMemory(key, bitmap);
+			}
+
+			return bitmap;
+
+		} finally {
+			mCancellation = null;
+			mPerformedLoad = null;
+			cacheMgr.completeLoad(load, bitmap);
+		}
+	}
+
+	private Bitmap decodeFromDisk(CacheManager cacheMgr, CacheKey key) {
+
+		long decodeTime = SystemClock.uptimeMillis();
+		Bitmap bitmap = cacheMgr.getCachedOnDisk(key, newDecodeOptions());
+		recordDecode(bitmap, decodeTime);
+
+		return bitmap;
+	}
+
+	@SuppressWarnings("deprecation")
+	private Options newDecodeOptions() {
+
+		Options options = new Options();
+		mDecodeOptions = options;
+
+		if (mCancelled && !isDecodeShared()) {
+			// Cancelled before the decode could be stopped
+			options.requestCancelDecode();
+		}
+
+		return options;
+	}
+
+	/**
+	 * @return true if other views wait for the load this task performs, so its decode must go on.
+	 */
+	private boolean isDecodeShared() {
+
+		InFlightLoad load = mPerformedLoad;
+		return load != null && mCacheMgr.isLoadShared(load);
+	}
+
+	@SuppressWarnings("deprecation")
+	private boolean isDecodeCancelled() {
+
+		Options options = mDecodeOptions;
+		return options != null && options.mCancel;
+	}
+
+	private void recordDecode(Bitmap bitmap, long decodeTime) {
+
+		mMetrics.decodeMillis = SystemClock.uptimeMillis() - decodeTime;
+		if (bitmap != null) {
+			mMetrics.decodedBytes = BitmapPool.getAllocationSize(bitmap);
+		}
+	}
+
+	private void onPostExecute(Bitmap bitmap) {
+
+		Bitmap result = bitmap;
 		
 		if (isCancelled()) {
             bitmap = null;
@@ -78,59 +506,12 @@ public class BitmapWorkerTask extends AsyncTask<Object, Void, Bitmap> {
             	
             	if (imageViewTask == this) {
             		imageView.setImageBitmap(bitmap);
+            		mCacheMgr.reportImageDisplayed();
             	}
             }
         }
-	}
-	
-	private static Bitmap decodeSampledBitmapFromUrl(String url, int reqWidth, int reqHeight) throws IOException {
-
-	    // First decode with inJustDecodeBounds=true to check dimensions
-	    final Options options = new Options();
-	    options.inJustDecodeBounds = true;
-	    
-	    InputStream stream = fetchStream(url);
-	    BitmapFactory.decodeStream(stream, null, options);
-	    stream.close();
-
-	    // Calculate inSampleSize
-	    options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
-	    // Decode bitmap with inSampleSize set
-	    options.inJustDecodeBounds = false;
-	    
-	    stream = fetchStream(url);
-	    Bitmap bitmap = BitmapFactory.decodeStream(stream, null, options);
-	    stream.close();
-	    
-	    return bitmap;
-	}
-	
-	private static InputStream fetchStream(String urlString) throws IllegalStateException, IOException {
-		
-		DefaultHttpClient httpClient = new DefaultHttpClient();
-		HttpGet request = new HttpGet(urlString);
-		HttpResponse response = httpClient.execute(request);
-		return response.getEntity().getContent();
-	}
-	
-	private static int calculateInSampleSize(Options options, int reqWidth, int reqHeight) {
-		// Raw height and width of image
-		final int height = options.outHeight;
-		final int width = options.outWidth;
-		int inSampleSize = 1;
-
-		if (height > reqHeight || width > reqWidth) {
-
-			// Calculate ratios of height and width to requested height and width
-			final int heightRatio = Math.round((float) height / (float) reqHeight);
-			final int widthRatio = Math.round((float) width / (float) reqWidth);
-
-			// Choose the smallest ratio as inSampleSize value, this will guarantee
-			// a final image with both dimensions larger than or equal to the
-			// requested height and width.
-			inSampleSize = heightRatio < widthRatio ? heightRatio : widthRatio;
-		}
 
-		return inSampleSize;
+		// Delivered. If displayed, the view retains it from now on
+		mCacheMgr.releaseBitmap(result);
 	}
 }
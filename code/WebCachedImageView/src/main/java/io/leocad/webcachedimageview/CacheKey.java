@@ -0,0 +1,173 @@
+package io.leocad.webcachedimageview;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * Identifies an image URL decoded at a given size and config. Memory cache lookups only
+ * need the URL's String hash code. The SHA-1 that names the disk cache entry is computed
+ * once, the first time it's needed, which is normally on a loader thread.
+ */
+public final class CacheKey {
+
+	/** Decodes into ARGB_8888, with full quality and transparency. */
+	public static final int CONFIG_ARGB_8888 = 0;
+	/** Decodes into RGB_565, with half the memory. Meant for opaque images, like photos. */
+	public static final int CONFIG_RGB_565 = 1;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	public final String url;
+	public final int width;
+	public final int height;
+	public final int bitmapConfig;
+
+	// Only a decoding hint, since the pixels are the same either way. Not part of the key
+	public final boolean purgeable;
+
+	// Only set for tiles of the original image. 0 means the whole image.
+	public final int tileSampleSize;
+	public final int tileColumn;
+	public final int tileRow;
+
+	private final int mHashCode;
+	private volatile String mDiskName; // Lazily computed, and shared with the derived keys
+
+	public CacheKey(String url, int width, int height) {
+		this(url, width, height, CONFIG_ARGB_8888, false);
+	}
+
+	/**
+	 * @param bitmapConfig {@link #CONFIG_ARGB_8888} or {@link #CONFIG_RGB_565}.
+	 * @param purgeable whether the bitmap may be decoded purgeable, on the APIs that support it.
+	 */
+	public CacheKey(String url, int width, int height, int bitmapConfig, boolean purgeable) {
+		this(url, null, width, height, bitmapConfig, purgeable, 0, 0, 0);
+	}
+
+	private CacheKey(String url, String diskName, int width, int height, int bitmapConfig, boolean purgeable,
+			int tileSampleSize, int tileColumn, int tileRow) {
+
+		this.url = url;
+		this.width = width;
+		this.height = height;
+		this.bitmapConfig = bitmapConfig;
+		this.purgeable = purgeable;
+		this.tileSampleSize = tileSampleSize;
+		this.tileColumn = tileColumn;
+		this.tileRow = tileRow;
+		mDiskName = diskName;
+
+		int hash = url.hashCode();
+		hash = 31 * hash + width;
+		hash = 31 * hash + height;
+		hash = 31 * hash + bitmapConfig;
+		hash = 31 * hash + tileSampleSize;
+		hash = 31 * hash + tileColumn;
+		hash = 31 * hash + tileRow;
+		mHashCode = hash;
+	}
+
+	/**
+	 * @return a key for the same URL and config at another size, sharing the disk name if it's
+	 * already computed.
+	 */
+	public CacheKey withSize(int width, int height) {
+
+		if (width == this.width && height == this.height) {
+			return this;
+		}
+
+		return new CacheKey(url, mDiskName, width, height, bitmapConfig, purgeable, tileSampleSize, tileColumn, tileRow);
+	}
+
+	/**
+	 * @return a key for a square tile of the original image, decoded at the given sample size.
+	 * The tile at (column, row) covers the original pixels starting at
+	 * (column * tileSize * sampleSize, row * tileSize * sampleSize).
+	 */
+	public CacheKey forTile(int tileSize, int sampleSize, int column, int row) {
+
+		return new CacheKey(url, mDiskName, tileSize, tileSize, bitmapConfig, purgeable, sampleSize, column, row);
+	}
+
+	public boolean isTile() {
+		return tileSampleSize > 0;
+	}
+
+	/**
+	 * @return the name of the disk cache entry. It depends only on the URL, since the
+	 * disk cache stores the original image. The first call hashes the URL.
+	 */
+	public String getDiskName() {
+
+		String diskName = mDiskName;
+
+		if (diskName == null) {
+			// Two threads may both compute it. They get the same name
+			byte[] digest = sha1(url);
+			char[] chars = new char[digest.length * 2];
+			for (int i = 0; i < digest.length; i++) {
+				chars[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+				chars[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+			}
+
+			diskName = new String(chars);
+			mDiskName = diskName;
+		}
+
+		return diskName;
+	}
+
+	@Override
+	public int hashCode() {
+		return mHashCode;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+
+		if (this == o) {
+			return true;
+		}
+
+		if (!(o instanceof CacheKey)) {
+			return false;
+		}
+
+		CacheKey another = (CacheKey) o;
+
+		// Compare the URLs themselves, so a hash collision can never return the wrong image
+		return mHashCode == another.mHashCode
+				&& width == another.width
+				&& height == another.height
+				&& bitmapConfig == another.bitmapConfig
+				&& tileSampleSize == another.tileSampleSize
+				&& tileColumn == another.tileColumn
+				&& tileRow == another.tileRow
+				&& url.equals(another.url);
+	}
+
+	@Override
+	public String toString() {
+		if (isTile()) {
+			return getDiskName() + "_tile_" + tileSampleSize + "_" + tileColumn + "_" + tileRow + "_" + bitmapConfig;
+		}
+
+		return getDiskName() + "_" + width + "_" + height + "_" + bitmapConfig;
+	}
+
+	private static byte[] sha1(String url) {
+
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -1,62 +1,265 @@
 package io.leocad.webcachedimageview;
 
-
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
+import android.graphics.BitmapFactory.Options;
 import android.os.Build;
 import android.os.Environment;
+import android.os.StatFs;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
 import android.util.Log;
 
 import com.jakewharton.DiskLruCache;
 import com.jakewharton.DiskLruCache.Snapshot;
 
-
 public class CacheManager {
 
 	public static final int MODE_NO_CACHE = 0;
 	public static final int MODE_MEMORY = 1;
 	public static final int MODE_DISK = 2;
 
-	private static final long DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
+	// How the images are stored on disk
+	public static final int STORE_RAW = 0; // The bytes as downloaded
+	public static final int STORE_JPEG = 1;
+	public static final int STORE_PNG = 2; // Keeps the alpha channel
+	public static final int STORE_WEBP = 3; // API 14 and up
+
+	// Computes the disk cache size from the free space of the cache volume
+	public static final long DISK_CACHE_SIZE_AUTO = 0;
+
+	private static final long MIN_DISK_CACHE_SIZE = 1024 * 1024 * 5; // 5MB
+	private static final long MAX_DISK_CACHE_SIZE = 1024 * 1024 * 50; // 50MB
+	private static final int DISK_CACHE_FREE_SPACE_DIVISOR = 50; // Use up to 2% of the free space
+	private static final int STORE_QUALITY = 80;
 	private static final String DISK_CACHE_SUBDIR = "images";
 	private static final int IO_BUFFER_SIZE = 8 * 1024;
+	private static final float BITMAP_POOL_FRACTION = 0.25f; // Of the memory cache size
+	private static final int TYPICAL_BITMAP_SIZE = 64; // KB, to estimate how many bitmaps fit in memory
+	private static final long MEMORY_RECOVERY_DELAY = 30 * 1000; // ms without warnings before growing back
+
+	// Version 2 stores the original downloaded bytes, keyed only by URL.
+	// Version 3 names the entries after a SHA-1 of the URL.
+	// Version 4 adds the HTTP metadata as a second value.
+	private static final int DISK_CACHE_VERSION = 4;
+	private static final int DISK_VALUE_DATA = 0;
+	private static final int DISK_VALUE_METADATA = 1;
+	private static final int DISK_VALUE_COUNT = 2;
+
+	// The namespace used by the views that don't name one, and cache on memory and disk
+	public static final String DEFAULT_NAMESPACE = "default";
+
+	// Lets every namespace use its whole quota, as long as they add up to at most MEMORY_BUDGET_AUTO_MAX_PERCENT
+	public static final float MEMORY_BUDGET_AUTO = 0.f;
+	public static final float MEMORY_BUDGET_AUTO_MAX_PERCENT = 25.f;
 
-	private static final CompressFormat BITMAP_COMPRESS_FORMAT = CompressFormat.JPEG;
-	private static final int BITMAP_COMPRESS_QUALITY = 80;
+	// Guarded by CacheManager.class. A namespace is never replaced once it's created
+	private static final HashMap<String, CacheManager> sNamespaces = new HashMap<String, CacheManager>();
+	private static float sMemoryBudgetPercent = MEMORY_BUDGET_AUTO;
+	private static float sMemoryScale = 1.f;
+	// Shared by every instance, so pooled connections survive a configuration change
+	private static HttpTransport sTransport = null;
 
-	private static CacheManager INSTANCE = null;
+	/**
+	 * @return the namespace used when none is named, for this mode. Each mode has its own,
+	 * so a later call can't turn on a cache that an earlier one left off, or the other way round.
+	 */
+	public static String getDefaultNamespace(int mode) {
 
+		switch (mode & (MODE_MEMORY | MODE_DISK)) {
+		case MODE_MEMORY | MODE_DISK:
+			return DEFAULT_NAMESPACE;
+		case MODE_MEMORY:
+			return DEFAULT_NAMESPACE + "-memory";
+		case MODE_DISK:
+			return DEFAULT_NAMESPACE + "-disk";
+		default:
+			return DEFAULT_NAMESPACE + "-no_cache";
+		}
+	}
+
+	/**
+	 * @see #getDefaultNamespace(int)
+	 */
 	public static CacheManager getInstance(Context context, int mode, float memoryPercentToUse) {
+		return getInstance(context, mode, memoryPercentToUse, DISK_CACHE_SIZE_AUTO, STORE_RAW);
+	}
+
+	/**
+	 * @param diskCacheSize the maximum size of the disk cache, in bytes, or {@link #DISK_CACHE_SIZE_AUTO}
+	 * to use 2% of the free space of the cache volume, between 5MB and 50MB.
+	 * @param storeFormat one of the STORE_* constants. Images stored as JPEG, PNG or WEBP are
+	 * transcoded at most at the screen size; only {@link #STORE_RAW} keeps the original resolution.
+	 * @see #getDefaultNamespace(int)
+	 * @see #getInstance(Context, String, int, float, long, int)
+	 */
+	public static CacheManager getInstance(Context context, int mode, float memoryPercentToUse, long diskCacheSize, int storeFormat) {
+		return getInstance(context, getDefaultNamespace(mode), mode, memoryPercentToUse, diskCacheSize, storeFormat);
+	}
+
+	/**
+	 * @return the cache of the namespace, created with the default configuration
+	 * if it doesn't exist yet.
+	 */
+	public static CacheManager getInstance(Context context, String namespace) {
 
-		if (INSTANCE == null || INSTANCE.mMode != mode || INSTANCE.mMemoryPercentToUse != memoryPercentToUse) {
-			INSTANCE = new CacheManager(context, mode, memoryPercentToUse);
+		synchronized (CacheManager.class) {
+			CacheManager instance = sNamespaces.get(namespace);
+			if (instance != null) {
+				return instance;
+			}
 		}
 
-		return INSTANCE;
+		return getInstance(context, namespace, MODE_MEMORY | MODE_DISK, 12.5f, DISK_CACHE_SIZE_AUTO, STORE_RAW);
+	}
+
+	/**
+	 * Namespaces let images with different needs, like avatars and photos, be cached with different
+	 * configurations. Each one has its own memory and disk caches, with their own quotas, so they
+	 * don't evict each other's images. Their memory caches share a global budget, though: see
+	 * {@link #setMemoryBudget(float)}.
+	 * <p>
+	 * A namespace is configured once, by the first call that names it. Later calls get the same
+	 * instance, even if they ask for another configuration.
+	 *
+	 * @param namespace up to 64 lowercase letters, digits, '-' or '_'. It names the disk cache directory.
+	 * @param memoryPercentToUse the quota of the namespace in the memory cache, in percent of the heap.
+	 */
+	public static CacheManager getInstance(Context context, String namespace, int mode, float memoryPercentToUse, long diskCacheSize, int storeFormat) {
+
+		synchronized (CacheManager.class) {
+			CacheManager instance = sNamespaces.get(namespace);
+
+			if (instance == null) {
+				if (!namespace.matches("[a-z0-9_-]{1,64}")) {
+					throw new IllegalArgumentException("Invalid cache namespace: \"" + namespace + "\"");
+				}
+
+				instance = new CacheManager(context, namespace, mode, memoryPercentToUse, diskCacheSize, storeFormat);
+				sNamespaces.put(namespace, instance);
+				rebalanceMemory();
+
+			} else if (instance.mRequestedMode != mode || instance.mMemoryPercentToUse != memoryPercentToUse
+					|| instance.mRequestedDiskCacheSize != diskCacheSize || instance.mStoreFormat != storeFormat) {
+				// Recreating it would throw away its caches, and those of the views still using it
+				Log.w("WebCachedImageView", "The cache namespace \"" + namespace + "\" keeps its first configuration. Use another namespace for this one.");
+			}
+
+			return instance;
+		}
 	}
 
+	/**
+	 * Sets the most memory that the memory caches of all the namespaces can use together.
+	 * When their quotas add up to more than that, they're all scaled down in proportion.
+	 *
+	 * @param percent in percent of the heap, or {@link #MEMORY_BUDGET_AUTO} for the sum of the quotas
+	 * of the namespaces, up to {@link #MEMORY_BUDGET_AUTO_MAX_PERCENT}.
+	 * @see #getMemoryScale()
+	 */
+	public static void setMemoryBudget(float percent) {
+
+		if (percent >= 100.f) {
+			throw new IllegalArgumentException("WebCachedImageView can't use more than 99% of the device's memory!");
+		}
+
+		synchronized (CacheManager.class) {
+			sMemoryBudgetPercent = percent;
+			rebalanceMemory();
+		}
+	}
+
+	/**
+	 * @return the factor that the memory quotas of all the namespaces are scaled by to fit the
+	 * budget, or 1 if they fit as they are.
+	 */
+	public static synchronized float getMemoryScale() {
+		return sMemoryScale;
+	}
+
+	// Must hold CacheManager.class
+	private static void rebalanceMemory() {
+
+		long total = 0;
+		for (CacheManager instance : sNamespaces.values()) {
+			if (instance.mMemoryCache != null) {
+				total += instance.mMemoryQuota;
+			}
+		}
+
+		float percent = sMemoryBudgetPercent == MEMORY_BUDGET_AUTO ? MEMORY_BUDGET_AUTO_MAX_PERCENT : sMemoryBudgetPercent;
+		long budget = (long) (Runtime.getRuntime().maxMemory() / 1024 * (percent / 100));
+		float scale = total > budget ? (float) budget / total : 1.f;
+		sMemoryScale = scale;
+
+		for (CacheManager instance : sNamespaces.values()) {
+			if (instance.mMemoryCache != null) {
+				instance.setMemoryCacheMaxSize((int) (instance.mMemoryQuota * scale));
+			}
+		}
+	}
+
+	private final String mNamespace;
 	private int mMode;
+	private final int mRequestedMode;
 	private float mMemoryPercentToUse;
-	private LruCache<String, Bitmap> mMemoryCache;
-	private DiskLruCache mDiskCache;
+	private long mRequestedDiskCacheSize;
+	private int mStoreFormat;
+	private int mMaxStoredDimension; // Pixels, for transcoded images
+	private ConcurrentLruCache<CacheKey, Bitmap> mMemoryCache;
+	private BitmapPool mBitmapPool;
+	private volatile DiskLruCache mDiskCache;
 	private final Object mDiskCacheLock = new Object();
-	private boolean mDiskCacheStarting = true;
+	private volatile boolean mDiskCacheStarting = true;
+	private ArrayList<Runnable> mParkedOnDiskCache = new ArrayList<Runnable>(); // Guarded by mDiskCacheLock
+	private int mParkedOnDiskCacheCount;
+	private final long mCreateTime = SystemClock.uptimeMillis();
+	private volatile long mDiskCacheOpenTime = -1;
+	private volatile long mFirstImageTime = -1;
+	private DiskWriter mDiskWriter;
+	private final HashMap<CacheKey, InFlightLoad> mInFlightLoads = new HashMap<CacheKey, InFlightLoad>();
+	private final SizeVariantIndex mSizeVariants = new SizeVariantIndex();
+	private int mVariantHitCount;
+	private int mVariantMissCount;
 
-	private CacheManager(Context context, int mode, float memoryPercentToUse) {
+	// Memory pressure. The configured sizes are restored step by step after a warning
+	private int mMemoryQuota; // KB, as configured
+	private int mMemoryCacheMaxSize; // KB, the quota within the global budget
+	private int mBitmapPoolMaxSize; // Bytes
+	private volatile float mMemoryLimitFraction = 1.f;
+	private final LoadStatistics mLoadStatistics = new LoadStatistics();
+	private volatile LoadMetrics.Listener mLoadMetricsListener;
 
+	private final Object mTrimLock = new Object();
+	private long mLastTrimTime;
+	private int mTrimCount;
+	private long mTrimmedBytes;
+
+	private CacheManager(Context context, String namespace, int mode, float memoryPercentToUse, long diskCacheSize, int storeFormat) {
+
+		mNamespace = namespace;
 		mMode = mode;
+		mRequestedMode = mode;
 		mMemoryPercentToUse = memoryPercentToUse;
+		mRequestedDiskCacheSize = diskCacheSize;
+		mStoreFormat = storeFormat;
+
+		// Either orientation
+		DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+		mMaxStoredDimension = Math.max(metrics.widthPixels, metrics.heightPixels);
 
 		if ((mode & MODE_MEMORY) == MODE_MEMORY) {
 
@@ -69,44 +272,178 @@ public class CacheManager {
 			final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
 			final int cacheSize = (int) (maxMemory * memoryPercentToUse);
 
-			mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
+			mMemoryQuota = cacheSize;
+			mMemoryCacheMaxSize = cacheSize;
+			mBitmapPoolMaxSize = (int) (cacheSize * 1024L * BITMAP_POOL_FRACTION);
+
+			// Evicted bitmaps go to the pool, so their memory can be reused by the next decodes
+			mBitmapPool = new BitmapPool(mBitmapPoolMaxSize);
+
+			mMemoryCache = new ConcurrentLruCache<CacheKey, Bitmap>(cacheSize, cacheSize / TYPICAL_BITMAP_SIZE) {
 				@Override
-				protected int sizeOf(String key, Bitmap bitmap) {
-					return (bitmap.getRowBytes() * bitmap.getHeight()) / 1024;
+				protected int sizeOf(CacheKey key, Bitmap bitmap) {
+					// What the bitmap really holds, which may be more than its pixels if it reuses a larger one
+					return BitmapPool.getAllocationSize(bitmap) / 1024;
+				}
+
+				@Override
+				protected void entryAdded(CacheKey key, Bitmap bitmap) {
+					// A tile is never a smaller version of the whole image
+					if (!key.isTile()) {
+						mSizeVariants.add(key);
+					}
+				}
+
+				@Override
+				protected void entryRemoved(boolean evicted, CacheKey key, Bitmap oldValue, Bitmap newValue) {
+					if (newValue == null) {
+						mSizeVariants.remove(key);
+					}
+
+					// Tiles may still be drawn after they're evicted, so they aren't reused
+					if (oldValue != newValue && !key.isTile()) {
+						mBitmapPool.put(oldValue);
+					}
 				}
 			};
 		}
 
+		if ((mode & MODE_MEMORY) == MODE_MEMORY && Build.VERSION.SDK_INT >= 14) {
+			// Namespaces live as long as the process, so they're never unregistered
+			context.getApplicationContext().registerComponentCallbacks(new MemoryTrimCallbacks(this));
+		}
+
 		if ((mMode & MODE_DISK) == MODE_DISK) {
 			// We should initialize the disk cache on a separate thread,
-			// because it's a time-consuming operation. Because of that,
-			// we should lock the file operations to wait the disk to be
-			// initialized. This is the purpose of mDiskCacheLock
-			File cacheDir = getCacheDir(context);
-			new AsyncTask<File, Void, Void>() {
+			// because it's a time-consuming operation. Meanwhile, loads
+			// that need the disk are parked with runWhenDiskCacheReady(),
+			// so they don't hold a loader thread. The few file operations
+			// that can't wait that way block on mDiskCacheLock instead.
+			// This is the only purpose of mDiskCacheLock: once the cache
+			// is open, reads run in parallel and writes go to mDiskWriter.
+			// It has its own thread, so it doesn't wait behind the image loads.
+			mDiskWriter = new DiskWriter(this);
+
+			final File cacheDir = getCacheDir(context, namespace);
+			new Thread(new Runnable() {
 				@Override
-				protected Void doInBackground(File... params) {
-					synchronized (mDiskCacheLock) {
-						File cacheDir = params[0];
+				public void run() {
+					DiskLruCache diskCache = null;
+					try {
+						long maxSize = mRequestedDiskCacheSize;
+						if (maxSize == DISK_CACHE_SIZE_AUTO) {
+							maxSize = computeDiskCacheSize(cacheDir);
+						}
+
+						diskCache = DiskLruCache.open(cacheDir, DISK_CACHE_VERSION, DISK_VALUE_COUNT, maxSize);
+					} catch (IOException e) {
+						Log.e("WebCachedImageView", "Couldn't init the disk cache.", e);
+					}
 
-						try {
-							mDiskCache = DiskLruCache.open(cacheDir, 1, 1, DISK_CACHE_SIZE);
-						} catch (IOException e) {
-							Log.e("WebCachedImageView", "Couldn't init the disk cache.", e);
+					ArrayList<Runnable> parked;
+					synchronized (mDiskCacheLock) {
+						if (diskCache == null) {
 							mMode -= MODE_DISK;
 						}
+						mDiskCache = diskCache;
+						mDiskCacheOpenTime = SystemClock.uptimeMillis() - mCreateTime;
 
 						mDiskCacheStarting = false; // Finished initialization
 						mDiskCacheLock.notifyAll(); // Wake any waiting threads
+
+						parked = mParkedOnDiskCache;
+						mParkedOnDiskCache = null;
+					}
+
+					// Outside the lock, since they're only resubmitted to the loader
+					for (int i = 0; i < parked.size(); i++) {
+						parked.get(i).run();
 					}
-					return null;
 				}
-			}.execute(cacheDir);
+			}, "WebCachedImageView-disk-init").start();
+		}
+	}
+
+	@SuppressLint("NewApi")
+	@SuppressWarnings("deprecation")
+	private static long computeDiskCacheSize(File cacheDir) {
+
+		long size = MIN_DISK_CACHE_SIZE;
+
+		try {
+			cacheDir.mkdirs();
+			StatFs statFs = new StatFs(cacheDir.getPath());
+
+			long available;
+			if (Build.VERSION.SDK_INT >= 18) {
+				available = statFs.getAvailableBytes();
+			} else {
+				available = (long) statFs.getAvailableBlocks() * statFs.getBlockSize();
+			}
+			size = available / DISK_CACHE_FREE_SPACE_DIVISOR;
+
+		} catch (IllegalArgumentException e) {
+			Log.e("WebCachedImageView", "Couldn't read the free space of the disk cache volume.", e);
+		}
+
+		return Math.max(MIN_DISK_CACHE_SIZE, Math.min(MAX_DISK_CACHE_SIZE, size));
+	}
+
+	/**
+	 * Changes the maximum size of the disk cache of this namespace, in bytes.
+	 */
+	public void setDiskCacheSize(long maxSize) {
+
+		if ((mMode & MODE_DISK) == MODE_DISK) {
+
+			DiskLruCache diskCache = waitForDiskCache();
+			if (diskCache != null) {
+				diskCache.setMaxSize(maxSize);
+			}
 		}
 	}
 
+	/**
+	 * @return the maximum size of the disk cache, in bytes, or 0 if it's disabled or couldn't be opened.
+	 */
+	public long getDiskCacheSize() {
+
+		if ((mMode & MODE_DISK) == MODE_DISK) {
+
+			DiskLruCache diskCache = waitForDiskCache();
+			if (diskCache != null) {
+				return diskCache.getMaxSize();
+			}
+		}
+
+		return 0;
+	}
+
+	public int getStoreFormat() {
+		return mStoreFormat;
+	}
+
+	public String getNamespace() {
+		return mNamespace;
+	}
+
+	/**
+	 * @return the most memory this namespace's memory cache can use, in KB: its quota, scaled down
+	 * if the quotas of all the namespaces exceed the global budget. 0 if the memory cache is disabled.
+	 */
+	public int getMemoryCacheMaxSize() {
+
+		synchronized (mTrimLock) {
+			return mMemoryCacheMaxSize;
+		}
+	}
+
+	/**
+	 * The default namespace keeps the directory used before there were namespaces. Each of the
+	 * others has its own: a DiskLruCache may delete everything in its directory.
+	 */
 	@SuppressLint("NewApi")
-	private File getCacheDir(Context context) {
+	private File getCacheDir(Context context, String namespace) {
 
 		String cacheDirPath;
 		String externalStorageState = Environment.getExternalStorageState();
@@ -125,122 +462,928 @@ public class CacheManager {
 			cacheDirPath = context.getCacheDir().getPath();
 		}
 
-		return new File(cacheDirPath + File.separator + DISK_CACHE_SUBDIR);
+		String subdir = DEFAULT_NAMESPACE.equals(namespace) ? DISK_CACHE_SUBDIR : DISK_CACHE_SUBDIR + "-" + namespace;
+		return new File(cacheDirPath + File.separator + subdir);
+	}
+
+	/**
+	 * The bitmap isn't retained, so it may be reused by another decode as soon as it's evicted.
+	 *
+	 * @see #getAndRetainOnMemory(CacheKey)
+	 */
+	public Bitmap getCachedOnMemory(CacheKey key) {
+
+		Bitmap bitmap = getAndRetainOnMemory(key);
+		releaseBitmap(bitmap);
+		return bitmap;
+	}
+
+	/**
+	 * Like {@link #getCachedOnMemory(CacheKey)}, but the bitmap is retained before it can be
+	 * evicted and reused. A non-null result must be balanced with {@link #releaseBitmap(Bitmap)}.
+	 */
+	public Bitmap getAndRetainOnMemory(CacheKey key) {
+
+		if ((mMode & MODE_MEMORY) == MODE_MEMORY) {
+			Bitmap bitmap = getAndRetain(key);
+
+			if (bitmap == null) {
+				// Maybe it's cached at a larger size
+				bitmap = getScaledFromLargerVariant(key);
+			}
+
+			return bitmap;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Looks only for this exact key in the memory cache. It's cheap enough to be called
+	 * on the main thread.
+	 */
+	public Bitmap peekOnMemory(CacheKey key) {
+
+		if ((mMode & MODE_MEMORY) == MODE_MEMORY) {
+			return mMemoryCache.get(key);
+		}
+
+		return null;
 	}
 
-	public Bitmap getCachedOnMemory(String url, int width, int height) {
+	/**
+	 * Like {@link #peekOnMemory(CacheKey)}, but the bitmap is retained before it can be
+	 * evicted and reused. A non-null result must be balanced with {@link #releaseBitmap(Bitmap)}.
+	 */
+	public Bitmap peekAndRetainOnMemory(CacheKey key) {
 
 		if ((mMode & MODE_MEMORY) == MODE_MEMORY) {
-			return mMemoryCache.get( getFileName(url, width, height) );
+			return getAndRetain(key);
 		}
 
 		return null;
 	}
 
-	public Bitmap getCachedOnDisk(String url, int width, int height) {
+	private Bitmap getAndRetain(CacheKey key) {
+
+		// Evicted bitmaps are offered to the pool under its lock. Under that same lock, a bitmap
+		// still in the cache can't be pooled, and decoded over, before it's retained
+		synchronized (mBitmapPool) {
+			Bitmap bitmap = mMemoryCache.get(key);
+
+			if (bitmap != null) {
+				mBitmapPool.retain(bitmap);
+			}
+
+			return bitmap;
+		}
+	}
+
+	/**
+	 * @return the scaled bitmap, retained, or null.
+	 */
+	private Bitmap getScaledFromLargerVariant(CacheKey key) {
+
+		CacheKey variantKey = mSizeVariants.findClosestLarger(key);
+		Bitmap variant = variantKey == null ? null : getAndRetain(variantKey);
+
+		if (variant == null) {
+			if (variantKey != null) {
+				// Stale index entry
+				mSizeVariants.remove(variantKey);
+			}
+
+			synchronized (this) {
+				mVariantMissCount++;
+			}
+			return null;
+		}
+
+		// Scale it down like inSampleSize would: both dimensions stay
+		// larger than or equal to the requested ones
+		float scale = Math.max((float) key.width / variant.getWidth(), (float) key.height / variant.getHeight());
+		Bitmap bitmap = variant;
+
+		if (scale < 1.f) {
+			int width = Math.max(1, Math.round(variant.getWidth() * scale));
+			int height = Math.max(1, Math.round(variant.getHeight() * scale));
+			try {
+				bitmap = Bitmap.createScaledBitmap(variant, width, height, true);
+			} finally {
+				// Retained only while its pixels were read
+				mBitmapPool.release(variant);
+			}
+
+			mBitmapPool.retain(bitmap);
+			cacheOnMemory(key, bitmap);
+		}
+
+		synchronized (this) {
+			mVariantHitCount++;
+		}
+		return bitmap;
+	}
+
+	/**
+	 * @return the number of memory cache misses that were served by scaling down a larger cached variant.
+	 */
+	public synchronized int getSizeVariantHitCount() {
+		return mVariantHitCount;
+	}
+
+	/**
+	 * @return the number of memory cache misses that had no larger variant to be scaled from.
+	 */
+	public synchronized int getSizeVariantMissCount() {
+		return mVariantMissCount;
+	}
+
+	public Bitmap getCachedOnDisk(CacheKey key) {
+		return getCachedOnDisk(key, new Options());
+	}
+
+	/**
+	 * @param decodeOptions new options to decode with, so the decode can be cancelled from another thread.
+	 */
+	Bitmap getCachedOnDisk(CacheKey key, Options decodeOptions) {
 
 		if ((mMode & MODE_DISK) == MODE_DISK) {
 
-			synchronized (mDiskCacheLock) {
-				// Wait while disk cache is started from background thread
-				while (mDiskCacheStarting) {
-					try {
-						mDiskCacheLock.wait();
-					} catch (InterruptedException e) {}
+			// Not written yet, but already downloaded
+			DiskWriter.PendingWrite pending = mDiskWriter.getPending(key.getDiskName());
+			if (pending != null && pending.data != null) {
+				return BitmapDecoder.decodeSampledBitmap(pending.data, key.width, key.height, key.bitmapConfig, key.purgeable,
+						mBitmapPool, decodeOptions);
+			}
+
+			DiskLruCache diskCache = waitForDiskCache();
+			if (diskCache == null) {
+				return null;
+			}
+
+			// No locks here: DiskLruCache only synchronizes its journal updates,
+			// so several threads can read and decode their snapshots at once.
+			try {
+				Snapshot snapshot = diskCache.get(key.getDiskName());
+				if (snapshot == null) {
+					return null;
 				}
 
-				if (mDiskCache != null) {
-					try {
-						Snapshot snapshot = mDiskCache.get( getFileName(url, width, height) );
-						
-						if (snapshot != null) {
-							InputStream is = snapshot.getInputStream(0);
-							Bitmap bitmap = BitmapFactory.decodeStream(is); // TODO Add sampling
-	
-							snapshot.close();
-							return bitmap;
+				try {
+					// DiskLruCache opens the clean files with FileInputStreams. Both passes decode
+					// that same file through its descriptor, which the platform decoder reads
+					// directly. Since it's open, evicting the entry meanwhile doesn't take it away
+					final FileInputStream in = (FileInputStream) snapshot.getInputStream(DISK_VALUE_DATA);
+
+					return BitmapDecoder.decodeSampledBitmap(new BitmapDecoder.Source() {
+						@Override
+						public Bitmap decode(Options options) throws IOException {
+
+							in.getChannel().position(0);
+							return BitmapFactory.decodeFileDescriptor(in.getFD(), null, options);
 						}
+					}, key.width, key.height, key.bitmapConfig, key.purgeable, mBitmapPool, decodeOptions);
 
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
+				} finally {
+					snapshot.close();
 				}
+
+			} catch (IOException e) {
+				Log.e("WebCachedImageView", "Couldn't read from the disk cache.", e);
 			}
 		}
 
 		return null;
 	}
 
-	public void cacheOnMemory(String url, Bitmap bitmap, int width, int height) {
+	public void cacheOnMemory(CacheKey key, Bitmap bitmap) {
 
 		if ((mMode & MODE_MEMORY) == MODE_MEMORY) {
-			mMemoryCache.put(getFileName(url, width, height), bitmap);
+			if (mMemoryLimitFraction < 1.f) {
+				growMemoryLimit();
+			}
+
+			// Indexed as a size variant if it's admitted
+			mMemoryCache.put(key, bitmap);
+		}
+	}
+
+	/**
+	 * @return the original image while it's still queued to be written to disk, or null.
+	 */
+	byte[] getPendingDiskData(CacheKey key) {
+
+		if ((mMode & MODE_DISK) == MODE_DISK) {
+			DiskWriter.PendingWrite pending = mDiskWriter.getPending(key.getDiskName());
+			return pending == null ? null : pending.data;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the file holding the original image on disk, or null if it's not stored.
+	 * The file may be deleted when the entry is evicted, so it should be opened right away.
+	 * If the image is still queued to be written, this waits for the write.
+	 */
+	File getDiskFile(CacheKey key) {
+
+		if ((mMode & MODE_DISK) == MODE_DISK) {
+
+			String diskName = key.getDiskName();
+			try {
+				mDiskWriter.awaitWritten(diskName);
+			} catch (InterruptedException e) {
+				return null;
+			}
+
+			DiskLruCache diskCache = waitForDiskCache();
+			if (diskCache == null) {
+				return null;
+			}
+
+			try {
+				Snapshot snapshot = diskCache.get(diskName);
+				if (snapshot == null) {
+					return null;
+				}
+				snapshot.close();
+
+				// DiskLruCache keeps each clean value in "<key>.<index>"
+				File file = new File(diskCache.getDirectory(), diskName + "." + DISK_VALUE_DATA);
+				return file.exists() ? file : null;
+
+			} catch (IOException e) {
+				Log.e("WebCachedImageView", "Couldn't read from the disk cache.", e);
+			}
 		}
+
+		return null;
 	}
 
-	public void cacheOnDisk(String url, Bitmap bitmap, int width, int height) {
+	/**
+	 * @return the metadata of the image stored on disk for this key, or null if it's not stored.
+	 */
+	DiskEntryMetadata getDiskMetadata(CacheKey key) {
 
 		if ((mMode & MODE_DISK) == MODE_DISK) {
 
-			synchronized (mDiskCacheLock) {
-				Snapshot snapshot;
+			DiskWriter.PendingWrite pending = mDiskWriter.getPending(key.getDiskName());
+			if (pending != null) {
+				return pending.metadata.url.equals(key.url) ? pending.metadata : null;
+			}
+
+			DiskLruCache diskCache = waitForDiskCache();
+			if (diskCache == null) {
+				return null;
+			}
+
+			try {
+				Snapshot snapshot = diskCache.get(key.getDiskName());
+				if (snapshot == null) {
+					return null;
+				}
+
+				DiskEntryMetadata metadata;
 				try {
-					snapshot = mDiskCache.get( getFileName(url, width, height) );
-				} catch (IOException e) {
-					Log.e("WebCachedImageView", "Couldn't init the disk cache.", e);
+					metadata = DiskEntryMetadata.parse(snapshot.getString(DISK_VALUE_METADATA));
+				} finally {
+					snapshot.close();
+				}
+
+				// Never serve another URL's image, even if their hashes collide
+				if (metadata != null && metadata.url.equals(key.url)) {
+					return metadata;
+				}
+
+			} catch (IOException e) {
+				Log.e("WebCachedImageView", "Couldn't read from the disk cache.", e);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Queues the encoded image to be stored along with its HTTP metadata: as downloaded,
+	 * or transcoded to the store format. It's stored only once per URL, regardless of the
+	 * sizes it's displayed at. A previously stored copy is replaced.
+	 * <p>
+	 * Until it's written, it's already found by the disk cache reads. If too many writes
+	 * are pending, it's dropped.
+	 */
+	void cacheOnDisk(CacheKey key, byte[] data, DiskEntryMetadata metadata) {
+
+		if ((mMode & MODE_DISK) == MODE_DISK) {
+			mDiskWriter.enqueue(key, data, metadata);
+		}
+	}
+
+	/**
+	 * Queues a new metadata for a stored image, keeping its bytes. Used after the image is revalidated.
+	 */
+	void updateDiskMetadata(CacheKey key, DiskEntryMetadata metadata) {
+
+		if ((mMode & MODE_DISK) == MODE_DISK) {
+			mDiskWriter.enqueue(key, null, metadata);
+		}
+	}
+
+	/**
+	 * Writes an entry, on the disk writer thread. It's not flushed.
+	 *
+	 * @param data the image, or null to only replace the metadata of the stored one.
+	 */
+	void writeToDisk(CacheKey key, byte[] data, DiskEntryMetadata metadata) {
+
+		DiskLruCache diskCache = waitForDiskCache();
+		if (diskCache == null) {
+			return;
+		}
+
+		String diskName = key.getDiskName();
+		DiskLruCache.Editor editor = null;
+		try {
+			if (data != null) {
+				if (mStoreFormat != STORE_RAW) {
+					data = transcode(data);
+				}
+
+				editor = diskCache.edit(diskName);
+				if (editor == null) {
 					return;
 				}
-				
-				if (mDiskCache != null && snapshot == null) {
 
-					DiskLruCache.Editor editor = null;
-					try {
-						editor = mDiskCache.edit( getFileName(url, width, height) );
-						if (editor == null) {
-							return;
-						}
+				writeBytesToFile(data, editor);
 
-						if (writeBitmapToFile(bitmap, editor)) {               
-							mDiskCache.flush();
-							editor.commit();
-							
-						} else {
-							editor.abort();
-						}
-						
-					} catch (IOException e) {
-						try {
-							if ( editor != null ) {
-								editor.abort();
-							}
-						} catch (IOException ignored) {
-						}           
-					}
+			} else {
+				Snapshot snapshot = diskCache.get(diskName);
+				if (snapshot == null) {
+					// Evicted meanwhile
+					return;
+				}
+
+				// Editing an existing entry keeps the values that aren't written
+				editor = snapshot.edit();
+				snapshot.close();
+				if (editor == null) {
+					return;
 				}
 			}
+
+			editor.set(DISK_VALUE_METADATA, metadata.serialize());
+			editor.commit();
+
+		} catch (IOException e) {
+			Log.e("WebCachedImageView", "Couldn't write to the disk cache.", e);
+			abortQuietly(editor);
+		}
+	}
+
+	void flushDiskCache() {
+
+		DiskLruCache diskCache = mDiskCache;
+		if (diskCache != null) {
+			flushDiskCache(diskCache);
+		}
+	}
+
+	/**
+	 * @return how many disk writes were dropped because too many were pending.
+	 */
+	public int getDroppedDiskWriteCount() {
+		return mDiskWriter == null ? 0 : mDiskWriter.getDroppedCount();
+	}
+
+	/**
+	 * @return how many disk writes were merged with a pending write of the same image.
+	 */
+	public int getMergedDiskWriteCount() {
+		return mDiskWriter == null ? 0 : mDiskWriter.getMergedCount();
+	}
+
+	/**
+	 * @return how many batches of disk writes were committed. Each one flushes the journal once.
+	 */
+	public int getDiskWriteBatchCount() {
+		return mDiskWriter == null ? 0 : mDiskWriter.getBatchCount();
+	}
+
+	/**
+	 * @return how many entries the disk writer committed.
+	 */
+	public int getDiskWriteCount() {
+		return mDiskWriter == null ? 0 : mDiskWriter.getWriteCount();
+	}
+
+	public int getPendingDiskWriteCount() {
+		return mDiskWriter == null ? 0 : mDiskWriter.getPendingCount();
+	}
+
+	/**
+	 * @return the image encoded in the store format, at most at the screen size, or the
+	 * original bytes if it couldn't be transcoded or it would get larger.
+	 */
+	@SuppressLint("InlinedApi")
+	private byte[] transcode(byte[] data) {
+
+		Bitmap.CompressFormat format;
+		if (mStoreFormat == STORE_PNG) {
+			format = Bitmap.CompressFormat.PNG;
+		} else if (mStoreFormat == STORE_WEBP && Build.VERSION.SDK_INT >= 14) {
+			format = Bitmap.CompressFormat.WEBP;
+		} else {
+			format = Bitmap.CompressFormat.JPEG;
+		}
+
+		Bitmap bitmap = BitmapDecoder.decodeSampledBitmap(data, mMaxStoredDimension, mMaxStoredDimension,
+				CacheKey.CONFIG_ARGB_8888, false, mBitmapPool);
+		if (bitmap == null) {
+			return data;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+		boolean compressed = bitmap.compress(format, STORE_QUALITY, out);
+
+		if (mBitmapPool != null) {
+			mBitmapPool.put(bitmap);
+		}
+
+		byte[] transcoded = out.toByteArray();
+		return compressed && transcoded.length < data.length ? transcoded : data;
+	}
+
+	private static void abortQuietly(DiskLruCache.Editor editor) {
+
+		try {
+			if ( editor != null ) {
+				editor.abort();
+			}
+		} catch (IOException ignored) {
+		}
+	}
+
+	private static void flushDiskCache(DiskLruCache diskCache) {
+
+		try {
+			diskCache.flush();
+		} catch (IOException e) {
+			Log.e("WebCachedImageView", "Couldn't flush the disk cache.", e);
+		}
+	}
+
+	/**
+	 * @return true if the disk cache is open, or if it's not used at all.
+	 */
+	public boolean isDiskCacheReady() {
+		return (mMode & MODE_DISK) != MODE_DISK || !mDiskCacheStarting;
+	}
+
+	/**
+	 * Parks the callback until the disk cache is open, without blocking the calling thread.
+	 * It's then run on the disk initialization thread, so it should only resubmit the work.
+	 *
+	 * @return false if the disk cache is already ready, and the callback wasn't parked.
+	 */
+	boolean runWhenDiskCacheReady(Runnable callback) {
+
+		synchronized (mDiskCacheLock) {
+			if (!mDiskCacheStarting || (mMode & MODE_DISK) != MODE_DISK) {
+				return false;
+			}
+
+			mParkedOnDiskCache.add(callback);
+			mParkedOnDiskCacheCount++;
+			return true;
+		}
+	}
+
+	/**
+	 * @return how many loads waited for the disk cache to open.
+	 */
+	public int getParkedOnDiskCacheCount() {
+
+		synchronized (mDiskCacheLock) {
+			return mParkedOnDiskCacheCount;
+		}
+	}
+
+	/**
+	 * @return how long the disk cache took to open since this cache manager was created, in ms,
+	 * or -1 if it's still opening or it's not used.
+	 */
+	public long getDiskCacheOpenMillis() {
+		return mDiskCacheOpenTime;
+	}
+
+	/**
+	 * @return how long it took to display the first image since this cache manager was
+	 * created, in ms, or -1 if no image was displayed yet.
+	 */
+	public long getTimeToFirstImageMillis() {
+		return mFirstImageTime;
+	}
+
+	/**
+	 * Called by the views when they display a loaded image, to measure the time to the first one.
+	 */
+	public void reportImageDisplayed() {
+
+		if (mFirstImageTime == -1) {
+			mFirstImageTime = SystemClock.uptimeMillis() - mCreateTime;
+		}
+	}
+
+	private DiskLruCache waitForDiskCache() {
+
+		synchronized (mDiskCacheLock) {
+			// Wait while disk cache is started from background thread
+			while (mDiskCacheStarting) {
+				try {
+					mDiskCacheLock.wait();
+				} catch (InterruptedException e) {}
+			}
+		}
+
+		return mDiskCache;
+	}
+
+	public int getMode() {
+		return mMode;
+	}
+
+	/**
+	 * Downloads the images to the disk cache ahead of time, at a low priority: they only
+	 * start while no view is waiting for an image.
+	 *
+	 * @param width the width the images will be displayed at, in pixels.
+	 * @param height the height the images will be displayed at, in pixels.
+	 * @return a group to cancel the prefetches with.
+	 */
+	public PrefetchGroup prefetch(List<String> urls, int width, int height) {
+		return prefetch(urls, width, height, false);
+	}
+
+	/**
+	 * @param warmMemory whether to also decode the images into the memory cache.
+	 * @see #prefetch(List, int, int)
+	 */
+	public PrefetchGroup prefetch(List<String> urls, int width, int height, boolean warmMemory) {
+		return prefetch(urls, width, height, CacheKey.CONFIG_ARGB_8888, warmMemory);
+	}
+
+	/**
+	 * @param bitmapConfig the config of the views the images will be displayed in, so the
+	 * memory cache is warmed with the bitmaps they will look up.
+	 * @see #prefetch(List, int, int, boolean)
+	 */
+	public PrefetchGroup prefetch(List<String> urls, int width, int height, int bitmapConfig, boolean warmMemory) {
+
+		ArrayList<PrefetchTask> tasks = new ArrayList<PrefetchTask>(urls.size());
+		LoaderExecutor executor = LoaderExecutor.getInstance();
+
+		for (int i = 0; i < urls.size(); i++) {
+			PrefetchTask task = new PrefetchTask(this, new CacheKey(urls.get(i), width, height, bitmapConfig, false), warmMemory);
+			tasks.add(task);
+			executor.executeWhenIdle(task);
+		}
+
+		return new PrefetchGroup(tasks);
+	}
+
+	/**
+	 * @return the transport used to download the images.
+	 */
+	public HttpTransport getTransport() {
+
+		synchronized (CacheManager.class) {
+			if (sTransport == null) {
+				sTransport = new HttpTransport();
+			}
+
+			return sTransport;
+		}
+	}
+
+	/**
+	 * Replaces the transport used to download the images, for example to change its
+	 * connection limits or timeouts. The previous transport is shut down.
+	 */
+	public static void setTransport(HttpTransport transport) {
+
+		if (transport == null) {
+			throw new NullPointerException("transport == null");
+		}
+
+		synchronized (CacheManager.class) {
+			if (sTransport != null && sTransport != transport) {
+				sTransport.shutdown();
+			}
+
+			sTransport = transport;
+		}
+	}
+
+	/**
+	 * @return the memory cache, to read its statistics, or null if it's disabled.
+	 */
+	public ConcurrentLruCache<CacheKey, Bitmap> getMemoryCache() {
+		return mMemoryCache;
+	}
+
+	/**
+	 * Only admits new images to a full memory cache if they are requested more often
+	 * than the ones they would evict. Useful when many images are displayed only once.
+	 */
+	public void setFrequencyAdmissionEnabled(boolean enabled) {
+
+		if (mMemoryCache != null) {
+			mMemoryCache.setAdmissionPolicyEnabled(enabled);
+		}
+	}
+
+	/**
+	 * Shrinks the memory cache and the bitmap pool according to the level of a memory warning.
+	 * It's called automatically on API 14 and up. Before that, call it from your activities'
+	 * onLowMemory() with {@link ComponentCallbacks2#TRIM_MEMORY_COMPLETE}.
+	 * <p>
+	 * The sizes grow back, doubling every 30 seconds without new warnings, as images are cached again.
+	 *
+	 * @param level one of the ComponentCallbacks2.TRIM_MEMORY_* levels.
+	 */
+	@SuppressLint("InlinedApi")
+	public void trimMemory(int level) {
+
+		float fraction;
+
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+			fraction = 0.f; // The process is next to be killed
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			fraction = 0.25f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			fraction = 0.5f; // Not visible, so the images aren't needed right now
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			fraction = 0.25f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			fraction = 0.5f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+			fraction = 0.75f;
+		} else {
+			return;
+		}
+
+		synchronized (mTrimLock) {
+			mLastTrimTime = SystemClock.uptimeMillis();
+			mTrimCount++;
+
+			// A milder warning doesn't undo a harsher one
+			if (fraction < mMemoryLimitFraction) {
+				applyMemoryLimit(fraction);
+			}
+		}
+	}
+
+	// Must hold mTrimLock
+	private void applyMemoryLimit(float fraction) {
+
+		if (mMemoryCache == null) {
+			return;
+		}
+
+		long before = mMemoryCache.size() * 1024L + mBitmapPool.size();
+
+		mMemoryLimitFraction = fraction;
+		if (fraction == 0.f) {
+			mMemoryCache.evictAll();
+		}
+		resizeMemory();
+
+		long after = mMemoryCache.size() * 1024L + mBitmapPool.size();
+		if (before > after) {
+			mTrimmedBytes += before - after;
 		}
 	}
 
-	private boolean writeBitmapToFile( Bitmap bitmap, DiskLruCache.Editor editor ) throws IOException, FileNotFoundException {
+	private void growMemoryLimit() {
+
+		synchronized (mTrimLock) {
+			long now = SystemClock.uptimeMillis();
+			float fraction = mMemoryLimitFraction;
+
+			if (fraction < 1.f && now - mLastTrimTime >= MEMORY_RECOVERY_DELAY) {
+				mLastTrimTime = now; // The next step waits for another delay
+				fraction = fraction == 0.f ? 0.25f : Math.min(1.f, fraction * 2);
+
+				mMemoryLimitFraction = fraction;
+				resizeMemory();
+			}
+		}
+	}
+
+	private void setMemoryCacheMaxSize(int maxSize) {
+
+		synchronized (mTrimLock) {
+			mMemoryCacheMaxSize = maxSize;
+			mBitmapPoolMaxSize = (int) (maxSize * 1024L * BITMAP_POOL_FRACTION);
+			resizeMemory();
+		}
+	}
+
+	// Must hold mTrimLock
+	private void resizeMemory() {
+
+		mMemoryCache.resize(Math.max(1, (int) (mMemoryCacheMaxSize * mMemoryLimitFraction)));
+		// Resized after the cache, since the evicted bitmaps go to the pool
+		mBitmapPool.resize((int) (mBitmapPoolMaxSize * mMemoryLimitFraction));
+	}
+
+	/**
+	 * @return how many memory warnings were received.
+	 */
+	public int getTrimCount() {
+
+		synchronized (mTrimLock) {
+			return mTrimCount;
+		}
+	}
+
+	/**
+	 * @return how many bytes of bitmaps the memory warnings released from the memory cache and the pool.
+	 */
+	public long getTrimmedBytes() {
+
+		synchronized (mTrimLock) {
+			return mTrimmedBytes;
+		}
+	}
+
+	/**
+	 * Receives the metrics of every image load, on the loader threads. Null to stop.
+	 */
+	public void setLoadMetricsListener(LoadMetrics.Listener listener) {
+		mLoadMetricsListener = listener;
+	}
+
+	/**
+	 * @return the aggregated metrics of the image loads.
+	 */
+	public LoadStatistics getLoadStatistics() {
+		return mLoadStatistics;
+	}
+
+	/**
+	 * Reports an image that the view found in memory by itself, without running a load.
+	 * It never queued nor decoded, so all its durations are zero.
+	 */
+	public void reportMemoryHit(CacheKey key) {
+
+		LoadMetrics metrics = new LoadMetrics(key);
+		metrics.source = LoadMetrics.SOURCE_MEMORY;
+		reportLoad(metrics);
+	}
+
+	void reportLoad(LoadMetrics metrics) {
+
+		mLoadStatistics.record(metrics);
+
+		LoadMetrics.Listener listener = mLoadMetricsListener;
+		if (listener != null) {
+			listener.onLoadFinished(metrics);
+		}
+	}
+
+	/**
+	 * @return the pool of bitmaps evicted from the memory cache, or null if the memory cache is disabled.
+	 */
+	public BitmapPool getBitmapPool() {
+		return mBitmapPool;
+	}
+
+	/**
+	 * Prevents the bitmap from being reused by another decode while it's displayed.
+	 * Every call must be balanced with {@link #releaseBitmap(Bitmap)}.
+	 */
+	public void retainBitmap(Bitmap bitmap) {
+
+		if (mBitmapPool != null && bitmap != null) {
+			mBitmapPool.retain(bitmap);
+		}
+	}
+
+	public void releaseBitmap(Bitmap bitmap) {
+
+		if (mBitmapPool != null && bitmap != null) {
+			mBitmapPool.release(bitmap);
+		}
+	}
+
+	/**
+	 * Attaches the caller to the load running for this URL and size, starting a new one if needed.
+	 * Every call must be balanced with {@link #detachFromLoad(InFlightLoad)}.
+	 */
+	InFlightLoad attachToLoad(CacheKey key) {
+
+		synchronized (mInFlightLoads) {
+			InFlightLoad load = mInFlightLoads.get(key);
+
+			if (load == null) {
+				load = new InFlightLoad(key);
+				mInFlightLoads.put(key, load);
+			}
+
+			load.refCount++;
+			return load;
+		}
+	}
+
+	void detachFromLoad(InFlightLoad load) {
+
+		boolean last;
+		synchronized (mInFlightLoads) {
+			last = --load.refCount == 0;
+		}
+
+		if (last) {
+			// Nobody can take the result anymore
+			releaseBitmap(load.getResult());
+		}
+	}
+
+	/**
+	 * Publishes the result to every attached requester. Later requesters will start a new load.
+	 * The result stays retained until they have all detached, so they can retain it themselves
+	 * with {@link InFlightLoad#getResult()}.
+	 */
+	void completeLoad(InFlightLoad load, Bitmap bitmap) {
+
+		synchronized (mInFlightLoads) {
+			removeInFlightLoad(load);
+		}
+
+		retainBitmap(bitmap);
+		if (!load.complete(bitmap)) {
+			// Already abandoned
+			releaseBitmap(bitmap);
+		}
+	}
+
+	/**
+	 * Gives up on the load, but only if nobody other than the caller is attached to it.
+	 *
+	 * @return true if the load was abandoned.
+	 */
+	boolean abandonLoadIfUnused(InFlightLoad load) {
+
+		synchronized (mInFlightLoads) {
+			if (load.refCount > 1) {
+				return false;
+			}
+
+			removeInFlightLoad(load);
+		}
+
+		load.abandon();
+		return true;
+	}
+
+	/**
+	 * Gives up on the load even if others are attached to it. They will start another one.
+	 */
+	void abandonLoad(InFlightLoad load) {
+
+		synchronized (mInFlightLoads) {
+			removeInFlightLoad(load);
+		}
+
+		load.abandon();
+	}
+
+	/**
+	 * @return true if someone other than the caller is attached to the load.
+	 */
+	boolean isLoadShared(InFlightLoad load) {
+
+		synchronized (mInFlightLoads) {
+			return load.refCount > 1;
+		}
+	}
+
+	private void removeInFlightLoad(InFlightLoad load) {
+
+		if (mInFlightLoads.get(load.key) == load) {
+			mInFlightLoads.remove(load.key);
+		}
+	}
+
+	private void writeBytesToFile(byte[] data, DiskLruCache.Editor editor) throws IOException {
 		OutputStream out = null;
 		try {
-			out = new BufferedOutputStream( editor.newOutputStream(0), IO_BUFFER_SIZE );
-			return bitmap.compress(BITMAP_COMPRESS_FORMAT, BITMAP_COMPRESS_QUALITY, out);
+			out = new BufferedOutputStream( editor.newOutputStream(DISK_VALUE_DATA), IO_BUFFER_SIZE );
+			out.write(data);
 		} finally {
 			if ( out != null ) {
 				out.close();
 			}
 		}
 	}
-	
-	private static String getFileName(String url, int width, int height) {
-		
-		return new StringBuffer()
-		.append(url.hashCode())
-		.append("_")
-		.append(width)
-		.append("_")
-		.append(height)
-		.toString();
-	}
 }
@@ -0,0 +1,504 @@
+package io.leocad.webcachedimageview;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A memory cache with the same contract as {@link LruCache} ({@link #sizeOf} and
+ * {@link #entryRemoved}), but whose reads don't take any lock.
+ *
+ * <p>Values live in a {@link ConcurrentHashMap}. Reads only record the key they hit in
+ * a small lossy buffer, which is replayed into the LRU order under the eviction lock
+ * by the next write, or when the buffer fills up. Writes and evictions are serialized
+ * by that lock.
+ *
+ * <p>Optionally, a frequency-aware admission policy (TinyLFU) can be enabled: when the
+ * cache is full, a new entry is only admitted if it has been requested more often
+ * recently than the entry it would evict. This keeps one-off images from pushing out
+ * the popular ones.
+ */
+public class ConcurrentLruCache<K, V> {
+
+	private static final int READ_BUFFER_SIZE = 64; // Must be a power of two
+	private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+	private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+	private final ConcurrentHashMap<K, V> mMap;
+	private final LinkedHashMap<K, V> mOrder; // Guarded by mEvictionLock
+	private final ReentrantLock mEvictionLock = new ReentrantLock();
+
+	private final AtomicReferenceArray<K> mReadBuffer = new AtomicReferenceArray<K>(READ_BUFFER_SIZE);
+	private final AtomicInteger mReadBufferIndex = new AtomicInteger();
+	private int mReadBufferDrainIndex; // Guarded by mEvictionLock
+
+	private final int mExpectedEntries;
+	private FrequencySketch mSketch; // Guarded by mEvictionLock. Null if admission is disabled
+
+	/** Size of this cache in units. Not necessarily the number of elements. */
+	private volatile int mSize;
+	private volatile int mMaxSize; // Only written while holding mEvictionLock
+
+	private int mPutCount;
+	private int mEvictionCount;
+	private int mRejectionCount;
+	private final AtomicInteger mHitCount = new AtomicInteger();
+	private final AtomicInteger mMissCount = new AtomicInteger();
+
+	/**
+	 * @param maxSize for caches that do not override {@link #sizeOf}, this is
+	 *     the maximum number of entries in the cache. For all other caches,
+	 *     this is the maximum sum of the sizes of the entries in this cache.
+	 * @param expectedEntries roughly how many entries fit in the cache. Used to size
+	 *     the admission policy's frequency sketch.
+	 */
+	public ConcurrentLruCache(int maxSize, int expectedEntries) {
+
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+
+		mMaxSize = maxSize;
+		mExpectedEntries = expectedEntries;
+		mMap = new ConcurrentHashMap<K, V>(16, 0.75f, 4);
+		mOrder = new LinkedHashMap<K, V>(0, 0.75f, true);
+	}
+
+	/**
+	 * Enables or disables the frequency-aware admission policy. It's disabled by default.
+	 */
+	public void setAdmissionPolicyEnabled(boolean enabled) {
+
+		mEvictionLock.lock();
+		try {
+			if (enabled && mSketch == null) {
+				mSketch = new FrequencySketch(mExpectedEntries);
+			} else if (!enabled) {
+				mSketch = null;
+			}
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the value for {@code key} if it exists in the cache. It doesn't take any lock.
+	 */
+	public final V get(K key) {
+
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+
+		V value = mMap.get(key);
+
+		if (value != null) {
+			mHitCount.incrementAndGet();
+		} else {
+			mMissCount.incrementAndGet();
+		}
+
+		// Misses are recorded too, so the admission policy knows
+		// about keys that are requested before they're cached
+		recordRead(key);
+		return value;
+	}
+
+	private void recordRead(K key) {
+
+		int index = mReadBufferIndex.getAndIncrement();
+		// Not lazySet(), which is only available from API 9
+		mReadBuffer.set(index & READ_BUFFER_MASK, key);
+
+		if ((index & (READ_BUFFER_DRAIN_THRESHOLD - 1)) == READ_BUFFER_DRAIN_THRESHOLD - 1 && mEvictionLock.tryLock()) {
+			try {
+				drainReadBuffer();
+			} finally {
+				mEvictionLock.unlock();
+			}
+		}
+	}
+
+	// Must hold mEvictionLock
+	private void drainReadBuffer() {
+
+		FrequencySketch sketch = mSketch;
+
+		// Only visit the slots written since the last drain. A put usually finds few of them
+		int writeIndex = mReadBufferIndex.get();
+		int pending = Math.min(writeIndex - mReadBufferDrainIndex, READ_BUFFER_SIZE);
+		mReadBufferDrainIndex = writeIndex;
+
+		for (int i = writeIndex - pending; i != writeIndex; i++) {
+			K key = mReadBuffer.getAndSet(i & READ_BUFFER_MASK, null);
+
+			if (key != null) {
+				// Moves it to the head of the queue, if it's still cached
+				mOrder.get(key);
+
+				if (sketch != null) {
+					sketch.increment(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Caches {@code value} for {@code key}. The value is moved to the head of
+	 * the queue. If the admission policy is enabled, the value may be rejected.
+	 *
+	 * @return the previous value mapped by {@code key}.
+	 */
+	public final V put(K key, V value) {
+
+		if (key == null || value == null) {
+			throw new NullPointerException("key == null || value == null");
+		}
+
+		V previous;
+		ArrayList<Map.Entry<K, V>> evicted;
+
+		mEvictionLock.lock();
+		try {
+			drainReadBuffer();
+
+			int valueSize = safeSizeOf(key, value);
+			FrequencySketch sketch = mSketch;
+
+			if (sketch != null) {
+				sketch.increment(key);
+
+				if (!mOrder.containsKey(key) && !admit(key, valueSize, sketch)) {
+					mRejectionCount++;
+					return null;
+				}
+			}
+
+			mPutCount++;
+			mSize += valueSize;
+			previous = mMap.put(key, value);
+			mOrder.put(key, value);
+
+			if (previous != null) {
+				mSize -= safeSizeOf(key, previous);
+			}
+
+			evicted = evictLocked(mMaxSize);
+
+		} finally {
+			mEvictionLock.unlock();
+		}
+
+		if (previous != null) {
+			entryRemoved(false, key, previous, value);
+		}
+
+		// Before the evictions, which may include this entry
+		entryAdded(key, value);
+		notifyEvicted(evicted);
+		return previous;
+	}
+
+	// TinyLFU: only evict the eldest entry for a candidate that is more popular
+	private boolean admit(K candidate, int candidateSize, FrequencySketch sketch) {
+
+		if (mSize + candidateSize <= mMaxSize || mOrder.isEmpty()) {
+			return true;
+		}
+
+		K victim = mOrder.keySet().iterator().next();
+		return sketch.frequency(candidate) > sketch.frequency(victim);
+	}
+
+	/**
+	 * Remove the eldest entries until the total of remaining entries is at or
+	 * below the requested size.
+	 *
+	 * @param maxSize the maximum size of the cache before returning. May be -1
+	 *            to evict even 0-sized elements.
+	 */
+	public void trimToSize(int maxSize) {
+
+		ArrayList<Map.Entry<K, V>> evicted;
+
+		mEvictionLock.lock();
+		try {
+			evicted = evictLocked(maxSize);
+		} finally {
+			mEvictionLock.unlock();
+		}
+
+		notifyEvicted(evicted);
+	}
+
+	// Must hold mEvictionLock
+	private ArrayList<Map.Entry<K, V>> evictLocked(int maxSize) {
+
+		ArrayList<Map.Entry<K, V>> evicted = null;
+
+		while (true) {
+			if (mSize < 0 || (mOrder.isEmpty() && mSize != 0)) {
+				throw new IllegalStateException(getClass().getName()
+						+ ".sizeOf() is reporting inconsistent results!");
+			}
+
+			if (mSize <= maxSize || mOrder.isEmpty()) {
+				break;
+			}
+
+			Iterator<Map.Entry<K, V>> it = mOrder.entrySet().iterator();
+			Map.Entry<K, V> toEvict = it.next();
+			K key = toEvict.getKey();
+			V value = toEvict.getValue();
+			it.remove();
+			mMap.remove(key);
+			mSize -= safeSizeOf(key, value);
+			mEvictionCount++;
+
+			if (evicted == null) {
+				evicted = new ArrayList<Map.Entry<K, V>>();
+			}
+			evicted.add(new Entry<K, V>(key, value));
+		}
+
+		return evicted;
+	}
+
+	private void notifyEvicted(ArrayList<Map.Entry<K, V>> evicted) {
+
+		if (evicted != null) {
+			for (int i = 0; i < evicted.size(); i++) {
+				Map.Entry<K, V> entry = evicted.get(i);
+				entryRemoved(true, entry.getKey(), entry.getValue(), null);
+			}
+		}
+	}
+
+	/**
+	 * Removes the entry for {@code key} if it exists.
+	 *
+	 * @return the previous value mapped by {@code key}.
+	 */
+	public final V remove(K key) {
+
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+
+		V previous;
+
+		mEvictionLock.lock();
+		try {
+			previous = mMap.remove(key);
+			if (previous != null) {
+				mOrder.remove(key);
+				mSize -= safeSizeOf(key, previous);
+			}
+		} finally {
+			mEvictionLock.unlock();
+		}
+
+		if (previous != null) {
+			entryRemoved(false, key, previous, null);
+		}
+
+		return previous;
+	}
+
+	/**
+	 * Called for entries that have been evicted or removed. This method is
+	 * invoked when a value is evicted to make space, removed by a call to
+	 * {@link #remove}, or replaced by a call to {@link #put}. The default
+	 * implementation does nothing.
+	 *
+	 * <p>The method is called without synchronization: other threads may
+	 * access the cache while this method is executing.
+	 *
+	 * @param evicted true if the entry is being removed to make space, false
+	 *     if the removal was caused by a {@link #put} or {@link #remove}.
+	 * @param newValue the new value for {@code key}, if it exists. If non-null,
+	 *     this removal was caused by a {@link #put}. Otherwise it was caused by
+	 *     an eviction or a {@link #remove}.
+	 */
+	protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+	/**
+	 * Called for values that were cached by a call to {@link #put}, but not for the
+	 * ones the admission policy rejected. The default implementation does nothing.
+	 *
+	 * <p>The method is called without synchronization: other threads may
+	 * access the cache while this method is executing.
+	 */
+	protected void entryAdded(K key, V value) {}
+
+	private int safeSizeOf(K key, V value) {
+		int result = sizeOf(key, value);
+		if (result < 0) {
+			throw new IllegalStateException("Negative size: " + key + "=" + value);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the size of the entry for {@code key} and {@code value} in
+	 * user-defined units.  The default implementation returns 1 so that size
+	 * is the number of entries and max size is the maximum number of entries.
+	 *
+	 * <p>An entry's size must not change while it is in the cache.
+	 */
+	protected int sizeOf(K key, V value) {
+		return 1;
+	}
+
+	/**
+	 * Changes the maximum size of the cache, evicting the eldest entries if it shrinks.
+	 */
+	public void resize(int maxSize) {
+
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+
+		ArrayList<Map.Entry<K, V>> evicted;
+
+		mEvictionLock.lock();
+		try {
+			mMaxSize = maxSize;
+			evicted = evictLocked(maxSize);
+		} finally {
+			mEvictionLock.unlock();
+		}
+
+		notifyEvicted(evicted);
+	}
+
+	/**
+	 * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+	 */
+	public final void evictAll() {
+		trimToSize(-1); // -1 will evict 0-sized elements
+	}
+
+	/**
+	 * For caches that do not override {@link #sizeOf}, this returns the number
+	 * of entries in the cache. For all other caches, this returns the sum of
+	 * the sizes of the entries in this cache.
+	 */
+	public final int size() {
+		return mSize;
+	}
+
+	/**
+	 * For caches that do not override {@link #sizeOf}, this returns the maximum
+	 * number of entries in the cache. For all other caches, this returns the
+	 * maximum sum of the sizes of the entries in this cache.
+	 */
+	public final int maxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * Returns the number of times {@link #get} returned a value.
+	 */
+	public final int hitCount() {
+		return mHitCount.get();
+	}
+
+	/**
+	 * Returns the number of times {@link #get} returned null.
+	 */
+	public final int missCount() {
+		return mMissCount.get();
+	}
+
+	/**
+	 * Returns the number of times {@link #put} was called and the value was cached.
+	 */
+	public final int putCount() {
+		mEvictionLock.lock();
+		try {
+			return mPutCount;
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of values that have been evicted.
+	 */
+	public final int evictionCount() {
+		mEvictionLock.lock();
+		try {
+			return mEvictionCount;
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of values the admission policy refused to cache.
+	 */
+	public final int rejectionCount() {
+		mEvictionLock.lock();
+		try {
+			return mRejectionCount;
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a copy of the current contents of the cache, ordered from least
+	 * recently accessed to most recently accessed.
+	 */
+	public final Map<K, V> snapshot() {
+		mEvictionLock.lock();
+		try {
+			drainReadBuffer();
+			return new LinkedHashMap<K, V>(mOrder);
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	@Override public final String toString() {
+		int hitCount = mHitCount.get();
+		int missCount = mMissCount.get();
+		int accesses = hitCount + missCount;
+		int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+		return String.format("ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%,evictions=%d]",
+				mMaxSize, hitCount, missCount, hitPercent, evictionCount());
+	}
+
+	private static class Entry<K, V> implements Map.Entry<K, V> {
+
+		private final K mKey;
+		private final V mValue;
+
+		Entry(K key, V value) {
+			mKey = key;
+			mValue = value;
+		}
+
+		@Override
+		public K getKey() {
+			return mKey;
+		}
+
+		@Override
+		public V getValue() {
+			return mValue;
+		}
+
+		@Override
+		public V setValue(V value) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package io.leocad.webcachedimageview;
+
+
+/**
+ * What the disk cache knows about a stored image, besides its bytes: the URL it came from,
+ * the HTTP validators to revalidate it with, and until when it's fresh.
+ * It's stored as the second value of the disk cache entry. Public for the benchmarks, which
+ * store entries like CacheManager does.
+ */
+public final class DiskEntryMetadata {
+
+	private static final String SEPARATOR = "\n";
+	private static final String NONE = "";
+
+	final String url;
+	final String etag;
+	final String lastModified;
+	final long expiresAt;
+	/** As the server set it, in ms, or {@link HttpTransport#LIFETIME_UNKNOWN}. Restarted by each revalidation. */
+	final long freshnessLifetime;
+
+	public DiskEntryMetadata(String url, String etag, String lastModified, long expiresAt, long freshnessLifetime) {
+		this.url = url;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.expiresAt = expiresAt;
+		this.freshnessLifetime = freshnessLifetime;
+	}
+
+	public static DiskEntryMetadata fromResponse(String url, HttpTransport.Response response) {
+		return new DiskEntryMetadata(url, response.etag, response.lastModified, response.expiresAt, response.freshnessLifetime);
+	}
+
+	/**
+	 * @return the metadata after a 304 Not Modified response. Its headers update the stored
+	 * ones: the server may have sent new validators and freshness. A 304 that says nothing
+	 * about freshness, like most do, restarts the stored lifetime from now.
+	 */
+	DiskEntryMetadata revalidated(HttpTransport.Response response) {
+		return revalidated(response, System.currentTimeMillis());
+	}
+
+	DiskEntryMetadata revalidated(HttpTransport.Response response, long now) {
+
+		long lifetime = response.freshnessLifetime != HttpTransport.LIFETIME_UNKNOWN
+				? response.freshnessLifetime
+				: freshnessLifetime;
+
+		return new DiskEntryMetadata(url,
+				response.etag != null ? response.etag : etag,
+				response.lastModified != null ? response.lastModified : lastModified,
+				HttpTransport.computeExpiresAt(lifetime, response.age, now),
+				lifetime);
+	}
+
+	boolean isFresh(long now) {
+		return now < expiresAt;
+	}
+
+	public String serialize() {
+
+		return new StringBuilder()
+		.append(expiresAt).append(SEPARATOR)
+		.append(freshnessLifetime).append(SEPARATOR)
+		.append(etag == null ? NONE : etag).append(SEPARATOR)
+		.append(lastModified == null ? NONE : lastModified).append(SEPARATOR)
+		.append(url)
+		.toString();
+	}
+
+	/**
+	 * @return the parsed metadata, or null if it's malformed.
+	 */
+	public static DiskEntryMetadata parse(String serialized) {
+
+		if (serialized == null) {
+			return null;
+		}
+
+		// URLs never contain line breaks, so the older entries, without
+		// the lifetime, have one field less
+		String[] fields = serialized.split(SEPARATOR, 5);
+
+		try {
+			if (fields.length == 5) {
+				return new DiskEntryMetadata(fields[4],
+						fields[2].length() == 0 ? null : fields[2],
+						fields[3].length() == 0 ? null : fields[3],
+						Long.parseLong(fields[0]),
+						Long.parseLong(fields[1]));
+			}
+
+			if (fields.length == 4) {
+				long expiresAt = Long.parseLong(fields[0]);
+
+				// Their lifetime is lost. Revalidate them every time, unless they never expire
+				return new DiskEntryMetadata(fields[3],
+						fields[1].length() == 0 ? null : fields[1],
+						fields[2].length() == 0 ? null : fields[2],
+						expiresAt,
+						expiresAt == Long.MAX_VALUE ? HttpTransport.LIFETIME_UNKNOWN : 0);
+			}
+
+		} catch (NumberFormatException e) {
+			// Malformed
+		}
+
+		return null;
+	}
+}
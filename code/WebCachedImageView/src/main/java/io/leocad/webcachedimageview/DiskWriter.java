@@ -0,0 +1,215 @@
+package io.leocad.webcachedimageview;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import android.os.Process;
+
+
+/**
+ * Writes to the disk cache on a background thread, so a load doesn't wait for the disk
+ * before its image is displayed. Pending writes are kept in memory until they're committed,
+ * so readers can still find them. Several writes for the same entry are merged into one, and
+ * the writes queued meanwhile are committed in batches, with a single flush for each batch.
+ * <p>
+ * The queue is bounded: when it's full, new writes are dropped. The image will simply be
+ * downloaded again the next time it's needed. An empty queue takes any write, however large.
+ */
+class DiskWriter implements Runnable {
+
+	private static final int MAX_PENDING_WRITES = 32;
+	private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+	/**
+	 * A write waiting to be committed. Data is null if only the metadata changes.
+	 */
+	static final class PendingWrite {
+
+		final CacheKey key;
+		final byte[] data;
+		final DiskEntryMetadata metadata;
+
+		PendingWrite(CacheKey key, byte[] data, DiskEntryMetadata metadata) {
+			this.key = key;
+			this.data = data;
+			this.metadata = metadata;
+		}
+	}
+
+	private final CacheManager mCacheMgr;
+
+	// Guarded by itself. Keyed by disk name, in the order they were queued
+	private final LinkedHashMap<String, PendingWrite> mPending = new LinkedHashMap<String, PendingWrite>();
+	private int mPendingBytes;
+
+	private int mWriteCount;
+	private int mBatchCount;
+	private int mMergedCount;
+	private int mDroppedCount;
+
+	DiskWriter(CacheManager cacheMgr) {
+
+		mCacheMgr = cacheMgr;
+
+		Thread thread = new Thread(this, "WebCachedImageView-disk-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues a write, replacing any other pending write for the same entry.
+	 *
+	 * @param data the image, or null to only replace the metadata of the stored one.
+	 * @return false if the queue was full, and the write was dropped.
+	 */
+	boolean enqueue(CacheKey key, byte[] data, DiskEntryMetadata metadata) {
+
+		String diskName = key.getDiskName();
+
+		synchronized (mPending) {
+			PendingWrite previous = mPending.get(diskName);
+
+			if (previous != null) {
+				mMergedCount++;
+
+				if (data == null) {
+					// Only the metadata changes. The image still has to be written
+					data = previous.data;
+				}
+				mPendingBytes -= sizeOf(previous);
+
+			} else if (isFull(data)) {
+				mDroppedCount++;
+				return false;
+			}
+
+			PendingWrite write = new PendingWrite(key, data, metadata);
+			mPending.put(diskName, write);
+			mPendingBytes += sizeOf(write);
+
+			mPending.notifyAll();
+			return true;
+		}
+	}
+
+	/**
+	 * @return the pending write for this entry, or null if there is none.
+	 */
+	PendingWrite getPending(String diskName) {
+
+		synchronized (mPending) {
+			return mPending.get(diskName);
+		}
+	}
+
+	/**
+	 * Blocks until there is no pending write for this entry.
+	 */
+	void awaitWritten(String diskName) throws InterruptedException {
+
+		synchronized (mPending) {
+			while (mPending.containsKey(diskName)) {
+				mPending.wait();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+		while (true) {
+			ArrayList<PendingWrite> batch;
+
+			synchronized (mPending) {
+				while (mPending.isEmpty()) {
+					try {
+						mPending.wait();
+					} catch (InterruptedException e) {
+						// Keep writing
+					}
+				}
+
+				batch = new ArrayList<PendingWrite>(mPending.values());
+			}
+
+			for (int i = 0; i < batch.size(); i++) {
+				PendingWrite write = batch.get(i);
+				mCacheMgr.writeToDisk(write.key, write.data, write.metadata);
+			}
+
+			// The journal is flushed once for the whole batch
+			mCacheMgr.flushDiskCache();
+
+			synchronized (mPending) {
+				for (int i = 0; i < batch.size(); i++) {
+					PendingWrite write = batch.get(i);
+					String diskName = write.key.getDiskName();
+
+					// Unless it was replaced meanwhile. Then it's written again in the next batch
+					if (mPending.get(diskName) == write) {
+						mPending.remove(diskName);
+						mPendingBytes -= sizeOf(write);
+					}
+				}
+
+				mWriteCount += batch.size();
+				mBatchCount++;
+				mPending.notifyAll(); // Wake the threads waiting for their writes
+			}
+		}
+	}
+
+	int getPendingCount() {
+
+		synchronized (mPending) {
+			return mPending.size();
+		}
+	}
+
+	int getWriteCount() {
+
+		synchronized (mPending) {
+			return mWriteCount;
+		}
+	}
+
+	int getBatchCount() {
+
+		synchronized (mPending) {
+			return mBatchCount;
+		}
+	}
+
+	int getMergedCount() {
+
+		synchronized (mPending) {
+			return mMergedCount;
+		}
+	}
+
+	int getDroppedCount() {
+
+		synchronized (mPending) {
+			return mDroppedCount;
+		}
+	}
+
+	// Must hold mPending
+	private boolean isFull(byte[] data) {
+
+		if (mPending.isEmpty()) {
+			// An original that is larger than the limit on its own, like
+			// a huge photo for the tiled mode, must still be stored
+			return false;
+		}
+
+		return mPending.size() >= MAX_PENDING_WRITES
+				|| (data != null && mPendingBytes + data.length > MAX_PENDING_BYTES);
+	}
+
+	private static int sizeOf(PendingWrite write) {
+		return write.data == null ? 0 : write.data.length;
+	}
+}
@@ -0,0 +1,95 @@
+package io.leocad.webcachedimageview;
+
+
+/**
+ * Estimates how often keys have been accessed recently, in a fixed amount of memory.
+ * It's a count-min sketch of 4-bit counters that are halved periodically, so old
+ * popularity fades away. Used by {@link ConcurrentLruCache}'s admission policy.
+ *
+ * <p>It's not thread safe.
+ */
+final class FrequencySketch {
+
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+	};
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int MAX_FREQUENCY = 15;
+
+	private final long[] mTable;
+	private final int mTableMask;
+	private final int mSampleSize;
+	private int mAdditions;
+
+	FrequencySketch(int expectedEntries) {
+
+		int size = 16;
+		while (size < expectedEntries) {
+			size <<= 1;
+		}
+
+		mTable = new long[size];
+		mTableMask = size - 1;
+		mSampleSize = 10 * size;
+	}
+
+	int frequency(Object key) {
+
+		int hash = spread(key.hashCode());
+		int frequency = MAX_FREQUENCY;
+
+		for (int i = 0; i < SEEDS.length; i++) {
+			int h = rehash(hash, i);
+			int shift = (h & 15) << 2;
+			int count = (int) ((mTable[(h >>> 4) & mTableMask] >>> shift) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+
+		return frequency;
+	}
+
+	void increment(Object key) {
+
+		int hash = spread(key.hashCode());
+		boolean added = false;
+
+		for (int i = 0; i < SEEDS.length; i++) {
+			int h = rehash(hash, i);
+			int index = (h >>> 4) & mTableMask;
+			int shift = (h & 15) << 2;
+
+			if (((mTable[index] >>> shift) & 0xfL) < MAX_FREQUENCY) {
+				mTable[index] += 1L << shift;
+				added = true;
+			}
+		}
+
+		if (added && ++mAdditions == mSampleSize) {
+			reset();
+		}
+	}
+
+	// Halves every counter, so the sketch keeps up with changes in popularity
+	private void reset() {
+
+		for (int i = 0; i < mTable.length; i++) {
+			mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+		}
+
+		mAdditions /= 2;
+	}
+
+	private static int rehash(int hash, int row) {
+
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		h += h >>> 32;
+		return (int) h;
+	}
+
+	private static int spread(int hash) {
+
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		return (hash >>> 16) ^ hash;
+	}
+}
@@ -0,0 +1,496 @@
+package io.leocad.webcachedimageview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Date;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+
+/**
+ * Downloads images over a pool of persistent connections shared by all the loader threads,
+ * so connections (and their TCP and TLS handshakes) are reused between images.
+ * Responses are requested gzipped and transparently decompressed, and can be
+ * revalidated with conditional requests.
+ *
+ * <p>It's thread safe, and doesn't depend on the Android framework.
+ */
+public class HttpTransport {
+
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+	public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 8;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000; // ms
+	public static final int DEFAULT_READ_TIMEOUT = 20 * 1000; // ms
+
+	/** The freshness lifetime of a response that says nothing about it. */
+	public static final long LIFETIME_UNKNOWN = -1;
+
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * The outcome of a request: either a new body, or a confirmation that the cached one
+	 * is still valid.
+	 */
+	public static class Response {
+
+		public final int statusCode;
+		/** The response body, or null if the server answered 304 Not Modified. */
+		public final byte[] body;
+		/** The validators sent by the server, or null. */
+		public final String etag;
+		public final String lastModified;
+		/**
+		 * How long the response is fresh for, in ms, as the server set it,
+		 * or {@link HttpTransport#LIFETIME_UNKNOWN}.
+		 */
+		public final long freshnessLifetime;
+		/** How long the response already spent in caches on its way, in ms, from its Age header. */
+		public final long age;
+		/** Until when the response is fresh, in milliseconds since the epoch. It never expires if the lifetime is unknown. */
+		public final long expiresAt;
+
+		Response(int statusCode, byte[] body, String etag, String lastModified, long freshnessLifetime, long age, long now) {
+			this.statusCode = statusCode;
+			this.body = body;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.freshnessLifetime = freshnessLifetime;
+			this.age = age;
+			this.expiresAt = computeExpiresAt(freshnessLifetime, age, now);
+		}
+
+		public boolean isNotModified() {
+			return statusCode == HttpStatus.SC_NOT_MODIFIED;
+		}
+	}
+
+	/**
+	 * Polled while a request runs, between the reads of its body.
+	 */
+	public interface Cancellation {
+		boolean isCancelled();
+
+		/**
+		 * Receives a hook that aborts the running request from any thread, even while it connects
+		 * or waits for the response headers. It's set back to null once the request is done.
+		 */
+		void setAbortHook(Runnable abort);
+	}
+
+	/**
+	 * A cancellation that keeps the abort hook, so the thread that cancels can abort the request.
+	 */
+	public abstract static class CancellationSignal implements Cancellation {
+
+		private volatile Runnable mAbortHook;
+
+		@Override
+		public void setAbortHook(Runnable abort) {
+			mAbortHook = abort;
+		}
+
+		/**
+		 * Aborts the running request, if {@link #isCancelled()} says so. To be called after cancelling.
+		 */
+		public void abortIfCancelled() {
+
+			Runnable abort = mAbortHook;
+			if (abort != null && isCancelled()) {
+				abort.run();
+			}
+		}
+	}
+
+	/**
+	 * Thrown when a request is aborted because it was cancelled.
+	 */
+	public static class CancelledException extends InterruptedIOException {
+
+		private static final long serialVersionUID = 1L;
+
+		/** How many bytes of the body were left unread, or -1 if the length wasn't known. */
+		public final long bytesSkipped;
+
+		CancelledException(String url, long bytesSkipped) {
+			super("Cancelled: " + url);
+			this.bytesSkipped = bytesSkipped;
+		}
+	}
+
+	private final DefaultHttpClient mHttpClient;
+
+	public HttpTransport() {
+		this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_TOTAL_CONNECTIONS, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+	}
+
+	/**
+	 * @param connectTimeout in milliseconds. Also used as the timeout to wait for a free pooled connection.
+	 * @param readTimeout in milliseconds, between two packets of data.
+	 */
+	public HttpTransport(int maxConnectionsPerHost, int maxTotalConnections, int connectTimeout, int readTimeout) {
+
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSoTimeout(params, readTimeout);
+		HttpConnectionParams.setSocketBufferSize(params, IO_BUFFER_SIZE);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		ConnManagerParams.setMaxTotalConnections(params, maxTotalConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerHost));
+		ConnManagerParams.setTimeout(params, connectTimeout);
+
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+		mHttpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemeRegistry), params);
+
+		mHttpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+			@Override
+			public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+				if (!request.containsHeader("Accept-Encoding")) {
+					request.addHeader("Accept-Encoding", "gzip");
+				}
+			}
+		});
+
+		mHttpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+			@Override
+			public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+				HttpEntity entity = response.getEntity();
+				if (entity == null) {
+					return;
+				}
+
+				Header encoding = entity.getContentEncoding();
+				if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+					response.setEntity(new GzipDecompressingEntity(entity));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Downloads the whole response body. The connection goes back to the pool afterwards.
+	 *
+	 * @throws IOException if the request fails or the server doesn't answer with 200 OK.
+	 */
+	public byte[] download(String url) throws IOException {
+		return fetch(url, null, null).body;
+	}
+
+	/**
+	 * Downloads the response, conditionally if validators of a cached copy are given.
+	 * The connection goes back to the pool afterwards.
+	 *
+	 * @param etag the ETag of the cached copy, or null.
+	 * @param lastModified the Last-Modified date of the cached copy, or null.
+	 * @throws IOException if the request fails or the server doesn't answer with 200 OK or 304 Not Modified.
+	 */
+	public Response fetch(String url, String etag, String lastModified) throws IOException {
+		return fetch(url, etag, lastModified, null);
+	}
+
+	/**
+	 * Like {@link #fetch(String, String, String)}, but gives up as soon as the cancellation
+	 * says so: before sending the request, or while reading its body. The request is then
+	 * aborted, closing its connection instead of reading the rest of the body to reuse it.
+	 * Through its abort hook, it can also be aborted while it connects or waits for the response.
+	 *
+	 * @param cancellation null if the request can't be cancelled.
+	 * @throws CancelledException if it was cancelled.
+	 */
+	public Response fetch(String url, String etag, String lastModified, Cancellation cancellation) throws IOException {
+
+		if (cancellation != null && cancellation.isCancelled()) {
+			throw new CancelledException(url, -1);
+		}
+
+		final HttpGet request = new HttpGet(url);
+		if (etag != null) {
+			request.addHeader("If-None-Match", etag);
+		}
+		if (lastModified != null) {
+			request.addHeader("If-Modified-Since", lastModified);
+		}
+
+		if (cancellation != null) {
+			cancellation.setAbortHook(new Runnable() {
+				@Override
+				public void run() {
+					request.abort();
+				}
+			});
+		}
+
+		try {
+			return execute(request, url, etag, lastModified, cancellation);
+
+		} finally {
+			if (cancellation != null) {
+				cancellation.setAbortHook(null);
+			}
+		}
+	}
+
+	private Response execute(HttpGet request, String url, String etag, String lastModified, Cancellation cancellation) throws IOException {
+
+		HttpResponse response;
+		try {
+			// Cancelled before the hook was set
+			if (cancellation != null && cancellation.isCancelled()) {
+				throw new CancelledException(url, -1);
+			}
+
+			response = mHttpClient.execute(request);
+
+		} catch (CancelledException e) {
+			throw e;
+
+		} catch (IOException e) {
+			if (cancellation != null && cancellation.isCancelled()) {
+				// Aborted while connecting or waiting for the response
+				throw new CancelledException(url, -1);
+			}
+			throw e;
+		}
+
+		HttpEntity entity = response.getEntity();
+		boolean aborted = false;
+
+		try {
+			int statusCode = response.getStatusLine().getStatusCode();
+			long now = System.currentTimeMillis();
+			long lifetime = computeFreshnessLifetime(response, now);
+			long age = getAge(response);
+
+			if (statusCode == HttpStatus.SC_NOT_MODIFIED && (etag != null || lastModified != null)) {
+				return new Response(statusCode, null, getHeader(response, "ETag"), getHeader(response, "Last-Modified"), lifetime, age, now);
+			}
+
+			if (statusCode != HttpStatus.SC_OK) {
+				throw new IOException("HTTP " + statusCode + " for " + url);
+			}
+
+			if (entity == null) {
+				throw new IOException("Empty response for " + url);
+			}
+
+			return new Response(statusCode, readFully(entity, request, cancellation, url), getHeader(response, "ETag"), getHeader(response, "Last-Modified"),
+					lifetime, age, now);
+
+		} catch (CancelledException e) {
+			aborted = true;
+			throw e;
+
+		} finally {
+			if (entity != null && !aborted) {
+				// Releases the connection, so it can be reused
+				entity.consumeContent();
+			}
+		}
+	}
+
+	/**
+	 * Closes all the pooled connections. The transport can't be used afterwards.
+	 */
+	public void shutdown() {
+		mHttpClient.getConnectionManager().shutdown();
+	}
+
+	private static byte[] readFully(HttpEntity entity, HttpGet request, Cancellation cancellation, String url) throws IOException {
+
+		long contentLength = entity.getContentLength();
+		int initialSize = contentLength > 0 && contentLength < Integer.MAX_VALUE ? (int) contentLength : IO_BUFFER_SIZE;
+
+		InputStream stream = entity.getContent();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(initialSize);
+			byte[] buffer = new byte[IO_BUFFER_SIZE];
+			int read;
+			while ((read = readOrCancel(stream, buffer, cancellation, url, contentLength, out.size())) != -1) {
+				out.write(buffer, 0, read);
+
+				if (cancellation != null && cancellation.isCancelled()) {
+					// Closes the socket, so the rest of the body is never downloaded
+					request.abort();
+					throw new CancelledException(url, contentLength > 0 ? contentLength - out.size() : -1);
+				}
+			}
+			return out.toByteArray();
+
+		} finally {
+			closeQuietly(stream);
+		}
+	}
+
+	private static int readOrCancel(InputStream stream, byte[] buffer, Cancellation cancellation, String url,
+			long contentLength, int bytesRead) throws IOException {
+
+		try {
+			return stream.read(buffer);
+
+		} catch (IOException e) {
+			if (cancellation != null && cancellation.isCancelled()) {
+				// Aborted through the hook while reading
+				throw new CancelledException(url, contentLength > 0 ? contentLength - bytesRead : -1);
+			}
+			throw e;
+		}
+	}
+
+	private static void closeQuietly(InputStream stream) {
+
+		try {
+			stream.close();
+		} catch (IOException ignored) {
+			// Already aborted, or the body was read
+		}
+	}
+
+	/**
+	 * @param freshnessLifetime in ms, or {@link #LIFETIME_UNKNOWN}.
+	 * @param age in ms, already spent in other caches.
+	 * @return until when a response received now is fresh. If its lifetime is unknown, it never expires.
+	 */
+	static long computeExpiresAt(long freshnessLifetime, long age, long now) {
+
+		if (freshnessLifetime == LIFETIME_UNKNOWN) {
+			return Long.MAX_VALUE;
+		}
+
+		return now + Math.max(0, freshnessLifetime - age);
+	}
+
+	/**
+	 * Computes the freshness lifetime from Cache-Control, then Expires, then the
+	 * Last-Modified heuristic (10% of the document's age).
+	 *
+	 * @return the lifetime in ms, or {@link #LIFETIME_UNKNOWN} if the server says nothing.
+	 */
+	static long computeFreshnessLifetime(HttpResponse response, long now) {
+
+		Header cacheControl = response.getFirstHeader("Cache-Control");
+		if (cacheControl != null) {
+			for (HeaderElement element : cacheControl.getElements()) {
+				String name = element.getName();
+
+				if ("no-cache".equalsIgnoreCase(name) || "no-store".equalsIgnoreCase(name)) {
+					return 0;
+
+				} else if ("max-age".equalsIgnoreCase(name) && element.getValue() != null) {
+					try {
+						return Math.max(0, Long.parseLong(element.getValue()) * 1000);
+					} catch (NumberFormatException ignored) {
+					}
+				}
+			}
+		}
+
+		// The server's clock may differ from ours, so use it to measure the lifetime
+		Date serverDate = getDateHeader(response, "Date");
+		long serverNow = serverDate != null ? serverDate.getTime() : now;
+
+		if (response.containsHeader("Expires")) {
+			// An invalid date, like "Expires: 0", means already expired
+			Date expires = getDateHeader(response, "Expires");
+			return expires == null ? 0 : Math.max(0, expires.getTime() - serverNow);
+		}
+
+		Date lastModified = getDateHeader(response, "Last-Modified");
+		if (lastModified != null) {
+			return Math.max(0, serverNow - lastModified.getTime()) / 10;
+		}
+
+		return LIFETIME_UNKNOWN;
+	}
+
+	/**
+	 * @return the Age header in ms, or 0 if there is none.
+	 */
+	static long getAge(HttpResponse response) {
+
+		String age = getHeader(response, "Age");
+		if (age == null) {
+			return 0;
+		}
+
+		try {
+			return Math.max(0, Long.parseLong(age.trim()) * 1000);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static String getHeader(HttpResponse response, String name) {
+
+		Header header = response.getFirstHeader(name);
+		return header == null ? null : header.getValue();
+	}
+
+	private static Date getDateHeader(HttpResponse response, String name) {
+
+		String value = getHeader(response, name);
+		if (value == null) {
+			return null;
+		}
+
+		try {
+			return DateUtils.parseDate(value);
+		} catch (DateParseException e) {
+			return null;
+		}
+	}
+
+	private static class GzipDecompressingEntity extends HttpEntityWrapper {
+
+		GzipDecompressingEntity(HttpEntity entity) {
+			super(entity);
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new GZIPInputStream(wrappedEntity.getContent());
+		}
+
+		@Override
+		public long getContentLength() {
+			// Unknown once decompressed
+			return -1;
+		}
+
+		@Override
+		public Header getContentEncoding() {
+			return null;
+		}
+	}
+}
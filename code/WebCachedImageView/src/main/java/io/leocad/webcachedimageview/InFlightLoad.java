@@ -0,0 +1,120 @@
+package io.leocad.webcachedimageview;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * A download and decode that is currently running for a given URL and target size.
+ * The first {@link BitmapWorkerTask} to attach does the work, the others are called
+ * back with its result. The reference count is guarded by the {@link CacheManager} registry.
+ */
+class InFlightLoad {
+
+	interface Callback {
+		void onLoadComplete(InFlightLoad load, Bitmap bitmap);
+	}
+
+	final CacheKey key;
+	int refCount;
+
+	private boolean mClaimed;
+	private boolean mDone;
+	private boolean mAbandoned;
+	private Bitmap mBitmap;
+	private ArrayList<Callback> mCallbacks = new ArrayList<Callback>();
+
+	InFlightLoad(CacheKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * @return true if the caller is the first one to claim the load, and thus must perform it.
+	 */
+	synchronized boolean claim() {
+
+		if (mClaimed) {
+			return false;
+		}
+
+		mClaimed = true;
+		return true;
+	}
+
+	/**
+	 * Calls back every parked callback, on the calling thread. Only the first call counts.
+	 *
+	 * @return false if the load was already complete.
+	 */
+	boolean complete(Bitmap bitmap) {
+
+		ArrayList<Callback> callbacks;
+		synchronized (this) {
+			if (mDone) {
+				// Already abandoned
+				return false;
+			}
+
+			mDone = true;
+			mBitmap = bitmap;
+			callbacks = mCallbacks;
+			mCallbacks = null;
+		}
+
+		for (Callback callback : callbacks) {
+			callback.onLoadComplete(this, bitmap);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the bitmap the load completed with, or null if it isn't complete, failed or was abandoned.
+	 */
+	synchronized Bitmap getResult() {
+		return mBitmap;
+	}
+
+	/**
+	 * Completes the load without a result, because the task performing it was cancelled.
+	 */
+	void abandon() {
+
+		synchronized (this) {
+			mAbandoned = true;
+		}
+
+		complete(null);
+	}
+
+	/**
+	 * @return true if the load was abandoned. Its waiters should start another one.
+	 */
+	synchronized boolean isAbandoned() {
+		return mAbandoned;
+	}
+
+	/**
+	 * Parks the callback until the load completes, without blocking the calling thread.
+	 * It's run on the thread that completes the load, before it goes on, so it should
+	 * only take over the result and hand it to another thread.
+	 *
+	 * @return false if the load is already complete, and the callback wasn't parked.
+	 */
+	synchronized boolean whenComplete(Callback callback) {
+
+		if (mDone) {
+			return false;
+		}
+
+		mCallbacks.add(callback);
+		return true;
+	}
+
+	/**
+	 * @return true if the callback was removed before it was called.
+	 */
+	synchronized boolean removeCallback(Callback callback) {
+		return mCallbacks != null && mCallbacks.remove(callback);
+	}
+}
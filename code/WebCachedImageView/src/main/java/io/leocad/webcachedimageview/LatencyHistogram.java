@@ -0,0 +1,118 @@
+package io.leocad.webcachedimageview;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Counts durations in power of two buckets: the first bucket holds 0ms, and bucket i
+ * holds [2^(i-1), 2^i) ms. Recording and reading don't lock, so it can be polled often.
+ */
+public class LatencyHistogram {
+
+	public static final int BUCKET_COUNT = 20; // The last one holds everything from ~4min
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mSum = new AtomicLong();
+
+	public void record(long millis) {
+
+		if (millis < 0) {
+			millis = 0;
+		}
+
+		mBuckets.incrementAndGet(getBucket(millis));
+		mCount.incrementAndGet();
+		mSum.addAndGet(millis);
+	}
+
+	public long getCount() {
+		return mCount.get();
+	}
+
+	/**
+	 * @return the mean duration, in ms, or 0 if nothing was recorded.
+	 */
+	public double getMean() {
+
+		long count = mCount.get();
+		return count == 0 ? 0 : (double) mSum.get() / count;
+	}
+
+	/**
+	 * @param percentile between 0 and 100.
+	 * @return the upper bound, in ms, of the bucket holding the given percentile,
+	 * or 0 if nothing was recorded.
+	 */
+	public long getPercentile(double percentile) {
+
+		long[] buckets = getBucketCounts();
+		long count = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			count += buckets[i];
+		}
+
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= rank && buckets[i] > 0) {
+				return getBucketUpperBound(i);
+			}
+		}
+
+		return getBucketUpperBound(BUCKET_COUNT - 1);
+	}
+
+	/**
+	 * @return a copy of the count of each bucket.
+	 */
+	public long[] getBucketCounts() {
+
+		long[] counts = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = mBuckets.get(i);
+		}
+
+		return counts;
+	}
+
+	/**
+	 * @return the largest duration, in ms, held by the bucket. The last bucket has no bound.
+	 */
+	public static long getBucketUpperBound(int bucket) {
+
+		if (bucket == BUCKET_COUNT - 1) {
+			return Long.MAX_VALUE;
+		}
+
+		return bucket == 0 ? 0 : (1L << bucket) - 1;
+	}
+
+	public void reset() {
+
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			mBuckets.set(i, 0);
+		}
+		mCount.set(0);
+		mSum.set(0);
+	}
+
+	private static int getBucket(long millis) {
+
+		// 64 - numberOfLeadingZeros is the number of bits, so 1ms goes to bucket 1, 2-3ms to 2...
+		int bucket = 64 - Long.numberOfLeadingZeros(millis);
+		return Math.min(bucket, BUCKET_COUNT - 1);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("LatencyHistogram[count=%d,mean=%.1fms,p50=%dms,p90=%dms,p99=%dms]",
+				getCount(), getMean(), getPercentile(50), getPercentile(90), getPercentile(99));
+	}
+}
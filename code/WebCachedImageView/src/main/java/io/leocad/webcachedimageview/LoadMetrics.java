@@ -0,0 +1,62 @@
+package io.leocad.webcachedimageview;
+
+
+/**
+ * What happened while loading one image. Durations are in ms, sizes in bytes.
+ */
+public final class LoadMetrics {
+
+	/**
+	 * Receives the metrics of every load, on the thread that ran it. It should return quickly.
+	 */
+	public interface Listener {
+		void onLoadFinished(LoadMetrics metrics);
+	}
+
+	public static final int SOURCE_NONE = 0; // Failed or cancelled
+	public static final int SOURCE_MEMORY = 1;
+	public static final int SOURCE_DISK = 2;
+	public static final int SOURCE_NETWORK = 3;
+	public static final int SOURCE_REVALIDATED = 4; // Read from disk after a 304
+	public static final int SOURCE_SHARED = 5; // Delivered by another load of the same image
+	static final int SOURCE_COUNT = 6;
+
+	public final String url;
+	public final int width;
+	public final int height;
+
+	public int source = SOURCE_NONE;
+	public boolean cancelled;
+
+	/** From execute() until the load started running, including the time deferred while paused. */
+	public long queueWaitMillis;
+	/** Waiting for the HTTP response and reading its body. */
+	public long networkMillis;
+	/** Reading and decoding the image, from disk or from the downloaded bytes. */
+	public long decodeMillis;
+	/** From the time the load started running until it finished. */
+	public long loadMillis;
+
+	/** The size of the response body, after decompression. */
+	public long bytesDownloaded;
+	/** The memory taken by the decoded bitmap. */
+	public long decodedBytes;
+
+	/** The part of the body left undownloaded because the load was cancelled, if its length was known. */
+	public long bytesSaved;
+	/** Whether the load was cancelled before its image was decoded, or while it was. */
+	public boolean decodeSkipped;
+
+	LoadMetrics(CacheKey key) {
+		url = key.url;
+		width = key.width;
+		height = key.height;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("LoadMetrics[url=%s,source=%d,cancelled=%b,queue=%dms,network=%dms,decode=%dms,load=%dms,downloaded=%d,decoded=%d,saved=%d,decodeSkipped=%b]",
+				url, source, cancelled, queueWaitMillis, networkMillis, decodeMillis, loadMillis, bytesDownloaded, decodedBytes,
+				bytesSaved, decodeSkipped);
+	}
+}
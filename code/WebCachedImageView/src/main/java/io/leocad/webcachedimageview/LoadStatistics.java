@@ -0,0 +1,140 @@
+package io.leocad.webcachedimageview;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Aggregates the metrics of every load since it was created or reset. Nothing here
+ * locks, so it's cheap to poll.
+ */
+public class LoadStatistics {
+
+	private final LatencyHistogram mQueueWait = new LatencyHistogram();
+	private final LatencyHistogram mNetwork = new LatencyHistogram();
+	private final LatencyHistogram mDecode = new LatencyHistogram();
+	private final LatencyHistogram mLoad = new LatencyHistogram();
+
+	private final AtomicIntegerArray mSourceCounts = new AtomicIntegerArray(LoadMetrics.SOURCE_COUNT);
+	private final AtomicInteger mCancelledCount = new AtomicInteger();
+	private final AtomicLong mBytesDownloaded = new AtomicLong();
+	private final AtomicLong mDecodedBytes = new AtomicLong();
+	private final AtomicLong mBytesSaved = new AtomicLong();
+	private final AtomicInteger mSkippedDecodeCount = new AtomicInteger();
+
+	void record(LoadMetrics metrics) {
+
+		mQueueWait.record(metrics.queueWaitMillis);
+		mLoad.record(metrics.loadMillis);
+
+		if (metrics.source == LoadMetrics.SOURCE_NETWORK || metrics.source == LoadMetrics.SOURCE_REVALIDATED) {
+			mNetwork.record(metrics.networkMillis);
+		}
+
+		if (metrics.decodedBytes > 0) {
+			mDecode.record(metrics.decodeMillis);
+		}
+
+		mSourceCounts.incrementAndGet(metrics.source);
+		if (metrics.cancelled) {
+			mCancelledCount.incrementAndGet();
+		}
+
+		mBytesDownloaded.addAndGet(metrics.bytesDownloaded);
+		mDecodedBytes.addAndGet(metrics.decodedBytes);
+
+		mBytesSaved.addAndGet(metrics.bytesSaved);
+		if (metrics.decodeSkipped) {
+			mSkippedDecodeCount.incrementAndGet();
+		}
+	}
+
+	public LatencyHistogram getQueueWait() {
+		return mQueueWait;
+	}
+
+	/**
+	 * @return the network time of the loads that downloaded or revalidated their image.
+	 */
+	public LatencyHistogram getNetwork() {
+		return mNetwork;
+	}
+
+	/**
+	 * @return the decode time of the loads that decoded their image.
+	 */
+	public LatencyHistogram getDecode() {
+		return mDecode;
+	}
+
+	public LatencyHistogram getLoad() {
+		return mLoad;
+	}
+
+	/**
+	 * @param source one of the LoadMetrics.SOURCE_* constants.
+	 */
+	public int getSourceCount(int source) {
+		return mSourceCounts.get(source);
+	}
+
+	public int getCancelledCount() {
+		return mCancelledCount.get();
+	}
+
+	public long getBytesDownloaded() {
+		return mBytesDownloaded.get();
+	}
+
+	public long getDecodedBytes() {
+		return mDecodedBytes.get();
+	}
+
+	/**
+	 * @return the bytes that cancelled loads didn't download. Only counts the responses whose length was known.
+	 */
+	public long getBytesSaved() {
+		return mBytesSaved.get();
+	}
+
+	/**
+	 * @return how many cancelled loads skipped or stopped decoding their image.
+	 */
+	public int getSkippedDecodeCount() {
+		return mSkippedDecodeCount.get();
+	}
+
+	/**
+	 * @return an estimate of the CPU time the skipped decodes saved, in ms: the mean decode time for each.
+	 */
+	public long getDecodeMillisSaved() {
+		return Math.round(getSkippedDecodeCount() * mDecode.getMean());
+	}
+
+	public void reset() {
+
+		mQueueWait.reset();
+		mNetwork.reset();
+		mDecode.reset();
+		mLoad.reset();
+
+		for (int i = 0; i < LoadMetrics.SOURCE_COUNT; i++) {
+			mSourceCounts.set(i, 0);
+		}
+		mCancelledCount.set(0);
+		mBytesDownloaded.set(0);
+		mDecodedBytes.set(0);
+		mBytesSaved.set(0);
+		mSkippedDecodeCount.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("LoadStatistics[memory=%d,disk=%d,network=%d,revalidated=%d,shared=%d,failed=%d,cancelled=%d,downloaded=%d,decoded=%d,saved=%d,skippedDecodes=%d,load=%s]",
+				getSourceCount(LoadMetrics.SOURCE_MEMORY), getSourceCount(LoadMetrics.SOURCE_DISK),
+				getSourceCount(LoadMetrics.SOURCE_NETWORK), getSourceCount(LoadMetrics.SOURCE_REVALIDATED),
+				getSourceCount(LoadMetrics.SOURCE_SHARED), getSourceCount(LoadMetrics.SOURCE_NONE),
+				getCancelledCount(), getBytesDownloaded(), getDecodedBytes(), getBytesSaved(), getSkippedDecodeCount(), mLoad);
+	}
+}
@@ -0,0 +1,302 @@
+package io.leocad.webcachedimageview;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+
+
+/**
+ * Runs the image loads on a bounded pool of background threads.
+ * Higher priorities run first. Among loads with the same priority, the most
+ * recently submitted one runs first, so the views that were just bound
+ * (the visible ones) are served before the ones scrolled away.
+ *
+ * <p>Background work, like prefetching, runs on a separate single thread, and
+ * only starts while no load is waiting for a thread.
+ *
+ * <p>The loader can be paused, e.g. during a fling. Loads submitted while paused are
+ * held, one per view, and only the ones whose view still wants them run on resume.
+ */
+public class LoaderExecutor {
+
+	public static final int PRIORITY_LOW = 0;
+	public static final int PRIORITY_NORMAL = 1;
+	public static final int PRIORITY_HIGH = 2;
+
+	private static final int DEFAULT_POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	private static final long IDLE_CHECK_INTERVAL = 100; // ms
+
+	private static LoaderExecutor INSTANCE = null;
+
+	public static synchronized LoaderExecutor getInstance() {
+
+		if (INSTANCE == null) {
+			INSTANCE = new LoaderExecutor(DEFAULT_POOL_SIZE);
+		}
+
+		return INSTANCE;
+	}
+
+	private final ThreadPoolExecutor mExecutor;
+	private final ThreadPoolExecutor mIdleExecutor;
+	private final AtomicLong mSequence = new AtomicLong();
+	private final Object mIdleLock = new Object();
+
+	private boolean mPaused; // Guarded by mIdleLock
+	// The last load deferred for each view while paused. Guarded by mIdleLock
+	private final LinkedHashMap<Object, DeferredLoad> mDeferredLoads = new LinkedHashMap<Object, DeferredLoad>();
+
+	private LoaderExecutor(int poolSize) {
+
+		mExecutor = new ThreadPoolExecutor(poolSize, poolSize, 1, TimeUnit.SECONDS,
+				new PriorityBlockingQueue<Runnable>(), new LoaderThreadFactory("loader", Process.THREAD_PRIORITY_BACKGROUND)) {
+
+			@Override
+			protected void afterExecute(Runnable r, Throwable t) {
+				super.afterExecute(r, t);
+
+				// Maybe the background work can go on now
+				synchronized (mIdleLock) {
+					mIdleLock.notifyAll();
+				}
+			}
+		};
+
+		mIdleExecutor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new LoaderThreadFactory("idle", Process.THREAD_PRIORITY_LOWEST));
+	}
+
+	public void execute(Runnable task, int priority) {
+
+		mExecutor.execute(new PrioritizedRunnable(task, priority, mSequence.incrementAndGet()));
+	}
+
+	/**
+	 * Executes the load, unless the loader is paused. In that case, it replaces any
+	 * other load deferred for the same view, and runs on {@link #resume()} if it's
+	 * still bound to its view.
+	 */
+	void executeOrDefer(BitmapWorkerTask task, Object view, int priority) {
+
+		synchronized (mIdleLock) {
+			if (mPaused) {
+				DeferredLoad previous = mDeferredLoads.remove(view);
+				if (previous != null) {
+					previous.task.cancel(false);
+				}
+
+				mDeferredLoads.put(view, new DeferredLoad(task, priority));
+				return;
+			}
+		}
+
+		execute(task, priority);
+	}
+
+	/**
+	 * Stops starting new loads and background work. Loads already running go on.
+	 */
+	public void pause() {
+
+		synchronized (mIdleLock) {
+			mPaused = true;
+		}
+	}
+
+	/**
+	 * Starts the loads deferred while paused, for the views still bound to them.
+	 */
+	public void resume() {
+
+		ArrayList<DeferredLoad> deferredLoads;
+
+		synchronized (mIdleLock) {
+			if (!mPaused) {
+				return;
+			}
+
+			mPaused = false;
+			deferredLoads = new ArrayList<DeferredLoad>(mDeferredLoads.values());
+			mDeferredLoads.clear();
+			mIdleLock.notifyAll();
+		}
+
+		// In submission order, so the last bound views still come first
+		for (int i = 0; i < deferredLoads.size(); i++) {
+			DeferredLoad deferredLoad = deferredLoads.get(i);
+
+			if (deferredLoad.task.isStillBound()) {
+				execute(deferredLoad.task, deferredLoad.priority);
+			}
+		}
+	}
+
+	public boolean isPaused() {
+
+		synchronized (mIdleLock) {
+			return mPaused;
+		}
+	}
+
+	/**
+	 * @return the number of loads held while paused.
+	 */
+	public int getDeferredCount() {
+
+		synchronized (mIdleLock) {
+			return mDeferredLoads.size();
+		}
+	}
+
+	/**
+	 * Runs the task in the background, in submission order, but only while
+	 * no load submitted through {@link #execute(Runnable, int)} is waiting,
+	 * and the loader isn't paused.
+	 */
+	public void executeWhenIdle(final Runnable task) {
+
+		mIdleExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					waitUntilIdle();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				task.run();
+			}
+		});
+	}
+
+	private void waitUntilIdle() throws InterruptedException {
+
+		synchronized (mIdleLock) {
+			while (mPaused || mExecutor.getQueue().size() > 0) {
+				mIdleLock.wait(IDLE_CHECK_INTERVAL);
+			}
+		}
+	}
+
+	/**
+	 * Sets how many images can be loaded at the same time.
+	 */
+	public synchronized void setPoolSize(int poolSize) {
+
+		if (poolSize <= 0) {
+			throw new IllegalArgumentException("poolSize <= 0");
+		}
+
+		if (poolSize > mExecutor.getMaximumPoolSize()) {
+			mExecutor.setMaximumPoolSize(poolSize);
+			mExecutor.setCorePoolSize(poolSize);
+		} else {
+			mExecutor.setCorePoolSize(poolSize);
+			mExecutor.setMaximumPoolSize(poolSize);
+		}
+	}
+
+	public int getPoolSize() {
+		return mExecutor.getCorePoolSize();
+	}
+
+	/**
+	 * @return the number of loads waiting for a free thread.
+	 */
+	public int getQueueDepth() {
+		return mExecutor.getQueue().size();
+	}
+
+	/**
+	 * @return the number of background tasks waiting to run.
+	 */
+	public int getIdleQueueDepth() {
+		return mIdleExecutor.getQueue().size();
+	}
+
+	/**
+	 * @return the approximate number of loads currently running.
+	 */
+	public int getActiveCount() {
+		return mExecutor.getActiveCount();
+	}
+
+	private static class DeferredLoad {
+
+		final BitmapWorkerTask task;
+		final int priority;
+
+		DeferredLoad(BitmapWorkerTask task, int priority) {
+			this.task = task;
+			this.priority = priority;
+		}
+	}
+
+	private static class PrioritizedRunnable implements Runnable, Comparable<PrioritizedRunnable> {
+
+		private final Runnable mTask;
+		private final int mPriority;
+		private final long mSequence;
+
+		PrioritizedRunnable(Runnable task, int priority, long sequence) {
+			mTask = task;
+			mPriority = priority;
+			mSequence = sequence;
+		}
+
+		@Override
+		public void run() {
+			mTask.run();
+		}
+
+		@Override
+		public int compareTo(PrioritizedRunnable another) {
+
+			if (mPriority != another.mPriority) {
+				return mPriority > another.mPriority ? -1 : 1;
+			}
+
+			// LIFO: the newest task comes first
+			if (mSequence != another.mSequence) {
+				return mSequence > another.mSequence ? -1 : 1;
+			}
+
+			return 0;
+		}
+	}
+
+	private static class LoaderThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger mCount = new AtomicInteger();
+		private final String mName;
+		private final int mThreadPriority;
+
+		LoaderThreadFactory(String name, int threadPriority) {
+			mName = name;
+			mThreadPriority = threadPriority;
+		}
+
+		@Override
+		public Thread newThread(final Runnable r) {
+
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(mThreadPriority);
+					r.run();
+				}
+			}, "WebCachedImageView-" + mName + "-" + mCount.incrementAndGet());
+
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
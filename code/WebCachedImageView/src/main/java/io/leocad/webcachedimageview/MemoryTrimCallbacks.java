@@ -0,0 +1,34 @@
+package io.leocad.webcachedimageview;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+
+/**
+ * Forwards the system's memory warnings to the cache manager. It's a class of its own
+ * so ComponentCallbacks2 is only loaded on API 14 and up.
+ */
+@TargetApi(14)
+class MemoryTrimCallbacks implements ComponentCallbacks2 {
+
+	private final CacheManager mCacheMgr;
+
+	MemoryTrimCallbacks(CacheManager cacheMgr) {
+		mCacheMgr = cacheMgr;
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		mCacheMgr.trimMemory(level);
+	}
+
+	@Override
+	public void onLowMemory() {
+		mCacheMgr.trimMemory(TRIM_MEMORY_COMPLETE);
+	}
+
+	@Override
+	public void onConfigurationChanged(Configuration newConfig) {
+	}
+}
@@ -0,0 +1,76 @@
+package io.leocad.webcachedimageview;
+
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+
+/**
+ * Pauses the image loader while a list is scrolling, so the images of rows that are
+ * only flying by are neither downloaded nor decoded. Images in the memory cache are still
+ * displayed right away. When the list stops, only the rows still on screen load their images.
+ *
+ * <pre>
+ * listView.setOnScrollListener(new PauseOnScrollListener(false, true));
+ * </pre>
+ */
+public class PauseOnScrollListener implements OnScrollListener {
+
+	private final boolean mPauseOnTouchScroll;
+	private final boolean mPauseOnFling;
+	private final OnScrollListener mDelegate;
+
+	/**
+	 * @param pauseOnTouchScroll whether to pause while the user scrolls with a finger on the screen.
+	 * @param pauseOnFling whether to pause during flings.
+	 */
+	public PauseOnScrollListener(boolean pauseOnTouchScroll, boolean pauseOnFling) {
+		this(pauseOnTouchScroll, pauseOnFling, null);
+	}
+
+	/**
+	 * @param delegate a listener that also gets the scroll events, since a list only has one.
+	 */
+	public PauseOnScrollListener(boolean pauseOnTouchScroll, boolean pauseOnFling, OnScrollListener delegate) {
+		mPauseOnTouchScroll = pauseOnTouchScroll;
+		mPauseOnFling = pauseOnFling;
+		mDelegate = delegate;
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+
+		LoaderExecutor executor = LoaderExecutor.getInstance();
+
+		switch (scrollState) {
+		case SCROLL_STATE_IDLE:
+			executor.resume();
+			break;
+
+		case SCROLL_STATE_TOUCH_SCROLL:
+			if (mPauseOnTouchScroll) {
+				executor.pause();
+			} else {
+				executor.resume();
+			}
+			break;
+
+		case SCROLL_STATE_FLING:
+			if (mPauseOnFling) {
+				executor.pause();
+			}
+			break;
+		}
+
+		if (mDelegate != null) {
+			mDelegate.onScrollStateChanged(view, scrollState);
+		}
+	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+
+		if (mDelegate != null) {
+			mDelegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+		}
+	}
+}
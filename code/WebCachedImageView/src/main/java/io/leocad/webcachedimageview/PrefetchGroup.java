@@ -0,0 +1,46 @@
+package io.leocad.webcachedimageview;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Images requested together through {@link CacheManager#prefetch}, that can be cancelled together.
+ */
+public class PrefetchGroup {
+
+	private final List<PrefetchTask> mTasks;
+
+	PrefetchGroup(List<PrefetchTask> tasks) {
+		mTasks = new ArrayList<PrefetchTask>(tasks);
+	}
+
+	/**
+	 * Cancels the prefetches that haven't finished yet. Images already cached stay cached.
+	 */
+	public void cancel() {
+
+		for (int i = 0; i < mTasks.size(); i++) {
+			mTasks.get(i).cancel();
+		}
+	}
+
+	public int size() {
+		return mTasks.size();
+	}
+
+	/**
+	 * @return how many prefetches of this group have finished, successfully or not.
+	 */
+	public int getFinishedCount() {
+
+		int count = 0;
+		for (int i = 0; i < mTasks.size(); i++) {
+			if (mTasks.get(i).isFinished()) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,101 @@
+package io.leocad.webcachedimageview;
+
+import java.util.ArrayList;
+
+
+/**
+ * Helps an adapter prefetch the images of the items a few positions ahead of the ones
+ * being bound, in the direction the user is scrolling.
+ * Call {@link #onItemBound(int)} from the adapter's getView(), on the main thread.
+ */
+public class PrefetchHelper {
+
+	/**
+	 * Tells which image each adapter position displays.
+	 */
+	public interface UrlProvider {
+
+		int getCount();
+
+		/**
+		 * @return the image URL displayed at this position, or null if there's none.
+		 */
+		String getImageUrl(int position);
+	}
+
+	private final CacheManager mCacheMgr;
+	private final UrlProvider mUrlProvider;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mDistance;
+	private final boolean mWarmMemory;
+
+	private int mLastPosition = -1;
+	private int mWindowStart = -1;
+	private int mWindowEnd = -1;
+	private PrefetchGroup mGroup;
+
+	/**
+	 * @param width the width the images are displayed at, in pixels.
+	 * @param height the height the images are displayed at, in pixels.
+	 * @param distance how many positions ahead to prefetch.
+	 * @param warmMemory whether to decode the prefetched images into the memory cache,
+	 * instead of only downloading them to the disk cache.
+	 */
+	public PrefetchHelper(CacheManager cacheMgr, UrlProvider urlProvider, int width, int height, int distance, boolean warmMemory) {
+		mCacheMgr = cacheMgr;
+		mUrlProvider = urlProvider;
+		mWidth = width;
+		mHeight = height;
+		mDistance = distance;
+		mWarmMemory = warmMemory;
+	}
+
+	public void onItemBound(int position) {
+
+		int start;
+		int end;
+
+		if (position >= mLastPosition) {
+			start = position + 1;
+			end = Math.min(mUrlProvider.getCount() - 1, position + mDistance);
+		} else {
+			start = Math.max(0, position - mDistance);
+			end = position - 1;
+		}
+		mLastPosition = position;
+
+		if (start > end || (start == mWindowStart && end == mWindowEnd)) {
+			return;
+		}
+
+		// Images left out of the new window are not needed anymore
+		cancel();
+		mWindowStart = start;
+		mWindowEnd = end;
+
+		ArrayList<String> urls = new ArrayList<String>(end - start + 1);
+		for (int i = start; i <= end; i++) {
+			String url = mUrlProvider.getImageUrl(i);
+			if (url != null) {
+				urls.add(url);
+			}
+		}
+
+		mGroup = mCacheMgr.prefetch(urls, mWidth, mHeight, mWarmMemory);
+	}
+
+	/**
+	 * Cancels the pending prefetches, for example when the list is no longer displayed.
+	 */
+	public void cancel() {
+
+		if (mGroup != null) {
+			mGroup.cancel();
+			mGroup = null;
+		}
+
+		mWindowStart = -1;
+		mWindowEnd = -1;
+	}
+}
@@ -0,0 +1,133 @@
+package io.leocad.webcachedimageview;
+
+import java.io.IOException;
+
+import android.util.Log;
+
+
+/**
+ * Downloads an image ahead of time into the disk cache and, optionally, the memory cache.
+ */
+class PrefetchTask implements Runnable {
+
+	private final CacheManager mCacheMgr;
+	private final CacheKey mKey;
+	private final boolean mWarmMemory;
+
+	private volatile boolean mCancelled;
+	private volatile boolean mFinished;
+	private volatile BitmapWorkerTask mBitmapTask;
+	private volatile HttpTransport.CancellationSignal mCancellation; // Of the running download
+
+	PrefetchTask(CacheManager cacheMgr, CacheKey key, boolean warmMemory) {
+		mCacheMgr = cacheMgr;
+		mKey = key;
+		mWarmMemory = warmMemory;
+	}
+
+	void cancel() {
+
+		mCancelled = true;
+
+		BitmapWorkerTask bitmapTask = mBitmapTask;
+		if (bitmapTask != null) {
+			bitmapTask.cancel(false);
+		}
+
+		HttpTransport.CancellationSignal cancellation = mCancellation;
+		if (cancellation != null) {
+			cancellation.abortIfCancelled();
+		}
+	}
+
+	boolean isFinished() {
+		return mFinished;
+	}
+
+	@Override
+	public void run() {
+
+		try {
+			if (mCancelled) {
+				return;
+			}
+
+			if (mWarmMemory) {
+				// The same pipeline as the views, so it's coalesced with their loads
+				mBitmapTask = new BitmapWorkerTask(null, mKey, mCacheMgr);
+				if (mCancelled) {
+					return;
+				}
+
+				// Only cached, never displayed
+				mCacheMgr.releaseBitmap(mBitmapTask.loadSynchronously());
+
+			} else {
+				prefetchToDisk();
+			}
+
+		} finally {
+			mBitmapTask = null;
+			mFinished = true;
+		}
+	}
+
+	private void prefetchToDisk() {
+
+		if ((mCacheMgr.getMode() & CacheManager.MODE_DISK) != CacheManager.MODE_DISK) {
+			// Nowhere to keep it
+			return;
+		}
+
+		DiskEntryMetadata stored = mCacheMgr.getDiskMetadata(mKey);
+		if (stored != null && stored.isFresh(System.currentTimeMillis())) {
+			return;
+		}
+
+		// Coalesced with the loads of the views, like the prefetches that warm the memory
+		final InFlightLoad load = mCacheMgr.attachToLoad(mKey);
+		if (!load.claim()) {
+			// Already being downloaded
+			mCacheMgr.detachFromLoad(load);
+			return;
+		}
+
+		try {
+			// Only give up if no view is waiting for this image
+			HttpTransport.CancellationSignal cancellation = new HttpTransport.CancellationSignal() {
+				@Override
+				public boolean isCancelled() {
+					return mCancelled && !mCacheMgr.isLoadShared(load);
+				}
+			};
+			mCancellation = cancellation;
+
+			HttpTransport.Response response = stored == null
+					? mCacheMgr.getTransport().fetch(mKey.url, null, null, cancellation)
+					: mCacheMgr.getTransport().fetch(mKey.url, stored.etag, stored.lastModified, cancellation);
+
+			if (cancellation.isCancelled()) {
+				// Cancelled after the body was read
+				return;
+			}
+
+			if (response.isNotModified()) {
+				mCacheMgr.updateDiskMetadata(mKey, stored.revalidated(response));
+			} else {
+				mCacheMgr.cacheOnDisk(mKey, response.body, DiskEntryMetadata.fromResponse(mKey.url, response));
+			}
+
+		} catch (HttpTransport.CancelledException e) {
+			// Nothing to store
+
+		} catch (IOException e) {
+			Log.w("WebCachedImageView", "Can't prefetch image at " + mKey.url, e);
+
+		} finally {
+			mCancellation = null;
+			// Nothing was decoded. The views waiting for it start over, and find it on disk
+			mCacheMgr.abandonLoad(load);
+			mCacheMgr.detachFromLoad(load);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package io.leocad.webcachedimageview;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/**
+ * Keeps track of the sizes each URL is cached at in the memory cache,
+ * so a request can be served from a larger variant of the same image.
+ */
+class SizeVariantIndex {
+
+	private final HashMap<String, ArrayList<CacheKey>> mVariants = new HashMap<String, ArrayList<CacheKey>>();
+
+	synchronized void add(CacheKey key) {
+
+		ArrayList<CacheKey> variants = mVariants.get(key.url);
+
+		if (variants == null) {
+			variants = new ArrayList<CacheKey>(2);
+			mVariants.put(key.url, variants);
+
+		} else if (variants.contains(key)) {
+			return;
+		}
+
+		variants.add(key);
+	}
+
+	synchronized void remove(CacheKey key) {
+
+		ArrayList<CacheKey> variants = mVariants.get(key.url);
+
+		if (variants != null && variants.remove(key) && variants.isEmpty()) {
+			mVariants.remove(key.url);
+		}
+	}
+
+	/**
+	 * @return the smallest cached variant in the same config, at least as large as the requested
+	 * key in both dimensions, or null if there is none.
+	 */
+	synchronized CacheKey findClosestLarger(CacheKey key) {
+
+		ArrayList<CacheKey> variants = mVariants.get(key.url);
+
+		if (variants == null || key.width <= 0 || key.height <= 0) {
+			return null;
+		}
+
+		CacheKey closest = null;
+		for (int i = 0; i < variants.size(); i++) {
+			CacheKey variant = variants.get(i);
+
+			if (variant.bitmapConfig == key.bitmapConfig
+					&& variant.width >= key.width && variant.height >= key.height
+					&& (closest == null || (long) variant.width * variant.height < (long) closest.width * closest.height)) {
+				closest = variant;
+			}
+		}
+
+		return closest;
+	}
+}
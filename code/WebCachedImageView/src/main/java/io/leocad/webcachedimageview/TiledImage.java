@@ -0,0 +1,358 @@
+package io.leocad.webcachedimageview;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+import android.util.Log;
+import android.view.View;
+
+
+/**
+ * Draws a large image in tiles, decoding only the visible regions of the original
+ * image at the resolution they're displayed at. The regions are read with a
+ * BitmapRegionDecoder from the image stored on disk, and the decoded tiles are
+ * kept in the memory cache.
+ * <p>
+ * The decoder is opened only once the image is magnified beyond the resolution
+ * of the bitmap below it, so views that are never zoomed don't pay for it.
+ */
+@TargetApi(10)
+public class TiledImage {
+
+	public static final int TILE_SIZE = 256;
+
+	private final CacheManager mCacheMgr;
+	private final CacheKey mKey;
+	private final WeakReference<View> mViewReference;
+
+	// Never waited for on the main thread: see recycle()
+	private final ReentrantLock mDecoderLock = new ReentrantLock();
+	private final LinkedHashSet<CacheKey> mPendingTiles = new LinkedHashSet<CacheKey>();
+	private boolean mDecodingTiles; // Guarded by mPendingTiles
+
+	private final Matrix mMatrix = new Matrix();
+	private final Matrix mInverse = new Matrix();
+	private final float[] mValues = new float[9];
+	private final RectF mVisible = new RectF();
+	private final RectF mTileRect = new RectF();
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	private BitmapRegionDecoder mDecoder;
+	private volatile int mImageWidth;
+	private volatile int mImageHeight;
+	private volatile boolean mOpenRequested;
+	private volatile boolean mRecycled;
+
+	public TiledImage(CacheManager cacheMgr, String url, View view) {
+		this(cacheMgr, url, CacheKey.CONFIG_ARGB_8888, view);
+	}
+
+	/**
+	 * @param bitmapConfig the config to decode the tiles with, {@link CacheKey#CONFIG_ARGB_8888}
+	 * or {@link CacheKey#CONFIG_RGB_565}.
+	 */
+	public TiledImage(CacheManager cacheMgr, String url, int bitmapConfig, View view) {
+
+		mCacheMgr = cacheMgr;
+		mKey = new CacheKey(url, TILE_SIZE, TILE_SIZE, bitmapConfig, false);
+		mViewReference = new WeakReference<View>(view);
+	}
+
+	/**
+	 * @return whether tiles can be decoded on this device. BitmapRegionDecoder is available from API 10.
+	 */
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= 10;
+	}
+
+	/**
+	 * Draws the visible tiles over the bitmap that is already displayed. Tiles that aren't
+	 * decoded yet are requested, and the view is invalidated when they're ready.
+	 *
+	 * @param imageMatrix maps the displayed bitmap to the canvas.
+	 * @param bitmapWidth the width of the displayed bitmap.
+	 * @param bitmapHeight the height of the displayed bitmap.
+	 * @param viewportWidth the width of the visible area of the canvas.
+	 * @param viewportHeight the height of the visible area of the canvas.
+	 */
+	public void draw(Canvas canvas, Matrix imageMatrix, int bitmapWidth, int bitmapHeight, int viewportWidth, int viewportHeight) {
+
+		if (mRecycled || bitmapWidth <= 0 || bitmapHeight <= 0) {
+			return;
+		}
+
+		int imageWidth = mImageWidth;
+		int imageHeight = mImageHeight;
+
+		if (imageWidth == 0) {
+			imageMatrix.getValues(mValues);
+			if (mValues[Matrix.MSCALE_X] > 1.f && !mOpenRequested) {
+				// The bitmap is magnified, so the original may have more detail to show
+				mOpenRequested = true;
+				open();
+			}
+			return;
+		}
+
+		// Maps the original image to the canvas
+		mMatrix.set(imageMatrix);
+		mMatrix.preScale((float) bitmapWidth / imageWidth, (float) bitmapHeight / imageHeight);
+		mMatrix.getValues(mValues);
+
+		float scale = mValues[Matrix.MSCALE_X];
+		int sampleSize = 1;
+		while (sampleSize * 2 * scale <= 1.f) {
+			sampleSize *= 2;
+		}
+
+		if (sampleSize * bitmapWidth >= imageWidth) {
+			// The displayed bitmap already has all the detail that can be seen
+			return;
+		}
+
+		if (!mMatrix.invert(mInverse)) {
+			return;
+		}
+
+		mVisible.set(0, 0, viewportWidth, viewportHeight);
+		mInverse.mapRect(mVisible);
+		if (!mVisible.intersect(0, 0, imageWidth, imageHeight)) {
+			return;
+		}
+
+		int tileSpan = TILE_SIZE * sampleSize;
+		int firstColumn = (int) (mVisible.left / tileSpan);
+		int lastColumn = (int) ((mVisible.right - 1) / tileSpan);
+		int firstRow = (int) (mVisible.top / tileSpan);
+		int lastRow = (int) ((mVisible.bottom - 1) / tileSpan);
+
+		int saveCount = canvas.save();
+		canvas.concat(mMatrix);
+
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+
+				CacheKey tileKey = mKey.forTile(TILE_SIZE, sampleSize, column, row);
+				Bitmap tile = mCacheMgr.peekOnMemory(tileKey);
+
+				if (tile == null) {
+					requestTile(tileKey);
+					continue;
+				}
+
+				int left = column * tileSpan;
+				int top = row * tileSpan;
+				mTileRect.set(left, top, Math.min(left + tileSpan, imageWidth), Math.min(top + tileSpan, imageHeight));
+				canvas.drawBitmap(tile, null, mTileRect, mPaint);
+			}
+		}
+
+		canvas.restoreToCount(saveCount);
+	}
+
+	/**
+	 * Closes the region decoder and drops the tiles that weren't decoded yet.
+	 * The decoded tiles stay in the memory cache. It doesn't wait for a running
+	 * decode: that one closes the decoder once it's done.
+	 */
+	public void recycle() {
+
+		mRecycled = true;
+
+		synchronized (mPendingTiles) {
+			mPendingTiles.clear();
+		}
+
+		if (mDecoderLock.tryLock()) {
+			try {
+				closeDecoder();
+			} finally {
+				mDecoderLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return the width of the original image, or 0 if it's not known yet.
+	 */
+	public int getImageWidth() {
+		return mImageWidth;
+	}
+
+	/**
+	 * @return the height of the original image, or 0 if it's not known yet.
+	 */
+	public int getImageHeight() {
+		return mImageHeight;
+	}
+
+	private void open() {
+
+		LoaderExecutor.getInstance().execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				// While it's queued to be written, read it from memory instead of waiting for the disk
+				byte[] pending = mCacheMgr.getPendingDiskData(mKey);
+				File file = pending == null ? mCacheMgr.getDiskFile(mKey) : null;
+				if (pending == null && file == null) {
+					// Not stored on disk. The next draw tries again
+					mOpenRequested = false;
+					return;
+				}
+
+				mDecoderLock.lock();
+				try {
+					if (mRecycled) {
+						return;
+					}
+
+					mDecoder = pending != null
+							? BitmapRegionDecoder.newInstance(pending, 0, pending.length, false)
+							: BitmapRegionDecoder.newInstance(file.getPath(), false);
+					mImageHeight = mDecoder.getHeight();
+					mImageWidth = mDecoder.getWidth();
+
+				} catch (IOException e) {
+					Log.e("WebCachedImageView", "Couldn't open the image for region decoding.", e);
+					mOpenRequested = false;
+					return;
+
+				} finally {
+					unlockDecoder();
+				}
+
+				invalidateView();
+			}
+		}, LoaderExecutor.PRIORITY_HIGH);
+	}
+
+	private void requestTile(CacheKey tileKey) {
+
+		synchronized (mPendingTiles) {
+			if (!mPendingTiles.add(tileKey) || mDecodingTiles) {
+				return;
+			}
+
+			mDecodingTiles = true;
+		}
+
+		LoaderExecutor.getInstance().execute(mTileDecoder, LoaderExecutor.PRIORITY_HIGH);
+	}
+
+	// The decoder can only decode one region at a time, so a single task decodes the pending
+	// tiles, in the order they were requested. It's resubmitted after each tile, instead of
+	// holding a loader thread while it waits for the decoder
+	private final Runnable mTileDecoder = new Runnable() {
+
+		@Override
+		public void run() {
+
+			CacheKey tileKey;
+			synchronized (mPendingTiles) {
+				Iterator<CacheKey> iterator = mPendingTiles.iterator();
+				if (!iterator.hasNext()) {
+					mDecodingTiles = false;
+					return;
+				}
+
+				// Still pending while it's decoded, so it's not requested again
+				tileKey = iterator.next();
+			}
+
+			try {
+				Bitmap tile = decodeTile(tileKey);
+				if (tile != null) {
+					mCacheMgr.cacheOnMemory(tileKey, tile);
+					invalidateView();
+				}
+
+			} finally {
+				synchronized (mPendingTiles) {
+					mPendingTiles.remove(tileKey);
+
+					if (mPendingTiles.isEmpty()) {
+						mDecodingTiles = false;
+						tileKey = null;
+					}
+				}
+
+				if (tileKey != null) {
+					LoaderExecutor.getInstance().execute(this, LoaderExecutor.PRIORITY_HIGH);
+				}
+			}
+		}
+	};
+
+	@SuppressLint("NewApi")
+	private Bitmap decodeTile(CacheKey tileKey) {
+
+		int tileSpan = TILE_SIZE * tileKey.tileSampleSize;
+		int left = tileKey.tileColumn * tileSpan;
+		int top = tileKey.tileRow * tileSpan;
+
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = tileKey.tileSampleSize;
+		options.inPreferredConfig = BitmapDecoder.toConfig(tileKey.bitmapConfig);
+
+		mDecoderLock.lock();
+		try {
+			if (mRecycled || mDecoder == null) {
+				return null;
+			}
+
+			Rect region = new Rect(left, top, Math.min(left + tileSpan, mImageWidth), Math.min(top + tileSpan, mImageHeight));
+			return mDecoder.decodeRegion(region, options);
+
+		} finally {
+			unlockDecoder();
+		}
+	}
+
+	private void unlockDecoder() {
+
+		mDecoderLock.unlock();
+
+		// If recycle() couldn't take the lock, whoever held it closes the decoder
+		if (mRecycled && mDecoderLock.tryLock()) {
+			try {
+				closeDecoder();
+			} finally {
+				mDecoderLock.unlock();
+			}
+		}
+	}
+
+	// Must hold mDecoderLock
+	private void closeDecoder() {
+
+		if (mDecoder != null) {
+			mDecoder.recycle();
+			mDecoder = null;
+		}
+	}
+
+	private void invalidateView() {
+
+		View view = mViewReference.get();
+		if (view != null) {
+			view.postInvalidate();
+		}
+	}
+}
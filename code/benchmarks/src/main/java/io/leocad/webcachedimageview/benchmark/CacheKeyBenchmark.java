@@ -0,0 +1,112 @@
+package io.leocad.webcachedimageview.benchmark;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.leocad.webcachedimageview.CacheKey;
+
+
+/**
+ * Building the cache keys, compared with the string keys CacheManager.getFileName()
+ * used to build for every memory and disk lookup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CacheKeyBenchmark {
+
+	private static final String URL = "http://images.example.com/photos/2014/10/a-rather-long-file-name_1024x768.jpg";
+	private static final int WIDTH = 320;
+	private static final int HEIGHT = 240;
+
+	private CacheKey mKey;
+	private HashMap<String, Object> mStringMap;
+	private HashMap<CacheKey, Object> mKeyMap;
+
+	@Setup
+	public void setUp() {
+
+		mKey = new CacheKey(URL, WIDTH, HEIGHT);
+
+		mStringMap = new HashMap<String, Object>();
+		mKeyMap = new HashMap<CacheKey, Object>();
+		for (int i = 0; i < 1000; i++) {
+			String url = URL + "?v=" + i;
+			mStringMap.put(getFileName(url, WIDTH, HEIGHT), this);
+			mKeyMap.put(new CacheKey(url, WIDTH, HEIGHT), this);
+		}
+		mStringMap.put(getFileName(URL, WIDTH, HEIGHT), this);
+		mKeyMap.put(mKey, this);
+	}
+
+	@Benchmark
+	public String legacyFileName() {
+		return getFileName(URL, WIDTH, HEIGHT);
+	}
+
+	@Benchmark
+	public CacheKey newCacheKey() {
+		return new CacheKey(URL, WIDTH, HEIGHT);
+	}
+
+	@Benchmark
+	public String newCacheKeyDiskName() {
+		return new CacheKey(URL, WIDTH, HEIGHT).getDiskName();
+	}
+
+	@Benchmark
+	public CacheKey cacheKeyWithSize() {
+		return mKey.withSize(WIDTH / 2, HEIGHT / 2);
+	}
+
+	/**
+	 * A lookup with a key built for it, as every memory cache lookup used to do.
+	 */
+	@Benchmark
+	public Object legacyFileNameLookup() {
+		return mStringMap.get(getFileName(URL, WIDTH, HEIGHT));
+	}
+
+	/**
+	 * A lookup with a key built for it, as the view does on the main thread for each image.
+	 * The key hashes the URL with SHA-1 only later, when the loader needs the disk name.
+	 */
+	@Benchmark
+	public Object newCacheKeyLookup() {
+		return mKeyMap.get(new CacheKey(URL, WIDTH, HEIGHT));
+	}
+
+	/**
+	 * A lookup with a key that already exists, as the loader does for each image.
+	 */
+	@Benchmark
+	public Object cacheKeyLookup() {
+		return mKeyMap.get(mKey);
+	}
+
+	// The key CacheManager used before CacheKey
+	private static String getFileName(String url, int width, int height) {
+
+		return new StringBuffer()
+		.append(url.hashCode())
+		.append("_")
+		.append(width)
+		.append("_")
+		.append(height)
+		.toString();
+	}
+}
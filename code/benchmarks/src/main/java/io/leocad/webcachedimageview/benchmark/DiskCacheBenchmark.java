@@ -0,0 +1,122 @@
+package io.leocad.webcachedimageview.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jakewharton.DiskLruCache;
+
+import io.leocad.webcachedimageview.CacheKey;
+import io.leocad.webcachedimageview.DiskEntryMetadata;
+import io.leocad.webcachedimageview.HttpTransport;
+
+
+/**
+ * DiskLruCache throughput with entries laid out like CacheManager's: the image bytes and
+ * a small metadata value, named after the key's SHA-1.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiskCacheBenchmark {
+
+	private static final int ENTRY_COUNT = 512;
+	// Fresh forever, like the images served without freshness headers
+	private static final String METADATA = new DiskEntryMetadata("http://images.example.com/", "\"etag\"", null,
+			Long.MAX_VALUE, HttpTransport.LIFETIME_UNKNOWN).serialize();
+
+	@Param({"16384", "131072"})
+	public int imageSize;
+
+	private DiskLruCache mDiskCache;
+	private String[] mDiskNames;
+	private byte[] mImage;
+	private final AtomicInteger mCounter = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		File directory = File.createTempFile("disk-benchmark", "");
+		directory.delete();
+		directory.mkdirs();
+
+		mDiskCache = DiskLruCache.open(directory, 1, 2, Long.MAX_VALUE);
+
+		mImage = new byte[imageSize];
+		new Random(42).nextBytes(mImage);
+
+		mDiskNames = new String[ENTRY_COUNT];
+		for (int i = 0; i < ENTRY_COUNT; i++) {
+			mDiskNames[i] = new CacheKey("http://images.example.com/" + i, 0, 0).getDiskName();
+			write(mDiskNames[i]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mDiskCache.delete();
+	}
+
+	@Benchmark
+	public void write() throws IOException {
+		write(mDiskNames[(mCounter.getAndIncrement() & 0x7fffffff) % ENTRY_COUNT]);
+	}
+
+	@Benchmark
+	public int read() throws IOException {
+
+		DiskLruCache.Snapshot snapshot = mDiskCache.get(mDiskNames[(mCounter.getAndIncrement() & 0x7fffffff) % ENTRY_COUNT]);
+		try {
+			InputStream in = snapshot.getInputStream(0);
+			byte[] buffer = new byte[8 * 1024];
+			int total = 0;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				total += read;
+			}
+			return total + snapshot.getString(1).length();
+
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	private void write(String diskName) throws IOException {
+
+		DiskLruCache.Editor editor = mDiskCache.edit(diskName);
+		if (editor == null) {
+			// Being written by another thread
+			return;
+		}
+
+		OutputStream out = editor.newOutputStream(0);
+		try {
+			out.write(mImage);
+		} finally {
+			out.close();
+		}
+		editor.set(1, METADATA);
+		editor.commit();
+	}
+}
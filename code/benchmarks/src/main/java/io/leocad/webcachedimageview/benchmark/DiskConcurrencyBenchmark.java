@@ -0,0 +1,158 @@
+package io.leocad.webcachedimageview.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jakewharton.DiskLruCache;
+
+import io.leocad.webcachedimageview.CacheKey;
+import io.leocad.webcachedimageview.DiskEntryMetadata;
+import io.leocad.webcachedimageview.HttpTransport;
+
+
+/**
+ * Disk cache hits on as many threads as the loader has, while another thread stores new
+ * images. The globalLock group holds one lock for each whole read and decode, and for each
+ * write, like CacheManager used to. The lockFree group reads and decodes without it, like
+ * CacheManager does now, with the writes coming from a single thread like DiskWriter's.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiskConcurrencyBenchmark {
+
+	private static final int ENTRY_COUNT = 512;
+	private static final int LOADER_THREADS = 4;
+	private static final int TARGET_SIZE = 256;
+	// Fresh forever, like the images served without freshness headers
+	private static final String METADATA = new DiskEntryMetadata("http://images.example.com/", "\"etag\"", null,
+			Long.MAX_VALUE, HttpTransport.LIFETIME_UNKNOWN).serialize();
+
+	@Param({"16384", "131072"})
+	public int imageSize;
+
+	private DiskLruCache mDiskCache;
+	private String[] mDiskNames;
+	private byte[] mImage;
+	private final Object mGlobalLock = new Object();
+	private final AtomicInteger mReadCounter = new AtomicInteger();
+	private final AtomicInteger mWriteCounter = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		File directory = File.createTempFile("disk-concurrency-benchmark", "");
+		directory.delete();
+		directory.mkdirs();
+
+		mDiskCache = DiskLruCache.open(directory, 1, 2, Long.MAX_VALUE);
+
+		mImage = new byte[imageSize];
+		new Random(42).nextBytes(mImage);
+
+		mDiskNames = new String[ENTRY_COUNT];
+		for (int i = 0; i < ENTRY_COUNT; i++) {
+			mDiskNames[i] = new CacheKey("http://images.example.com/" + i, 0, 0).getDiskName();
+			write(mDiskNames[i]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mDiskCache.delete();
+	}
+
+	@Benchmark
+	@Group("globalLock")
+	@GroupThreads(LOADER_THREADS)
+	public int globalLockRead() throws IOException {
+
+		synchronized (mGlobalLock) {
+			return readAndDecode();
+		}
+	}
+
+	@Benchmark
+	@Group("globalLock")
+	@GroupThreads(1)
+	public void globalLockWrite() throws IOException {
+
+		synchronized (mGlobalLock) {
+			write(nextWrite());
+		}
+	}
+
+	@Benchmark
+	@Group("lockFree")
+	@GroupThreads(LOADER_THREADS)
+	public int lockFreeRead() throws IOException {
+		return readAndDecode();
+	}
+
+	@Benchmark
+	@Group("lockFree")
+	@GroupThreads(1)
+	public void lockFreeWrite() throws IOException {
+		write(nextWrite());
+	}
+
+	private String nextWrite() {
+		return mDiskNames[(mWriteCounter.getAndIncrement() & 0x7fffffff) % ENTRY_COUNT];
+	}
+
+	private int readAndDecode() throws IOException {
+
+		DiskLruCache.Snapshot snapshot = mDiskCache.get(mDiskNames[(mReadCounter.getAndIncrement() & 0x7fffffff) % ENTRY_COUNT]);
+		if (snapshot == null) {
+			// Being replaced by the writer
+			return 0;
+		}
+
+		try {
+			return FakeDecoder.decode(snapshot.getInputStream(0), TARGET_SIZE, TARGET_SIZE)[0];
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	private void write(String diskName) throws IOException {
+
+		DiskLruCache.Editor editor = mDiskCache.edit(diskName);
+		if (editor == null) {
+			// Still being written
+			return;
+		}
+
+		OutputStream out = editor.newOutputStream(0);
+		try {
+			out.write(mImage);
+		} finally {
+			out.close();
+		}
+		editor.set(1, METADATA);
+		editor.commit();
+	}
+}
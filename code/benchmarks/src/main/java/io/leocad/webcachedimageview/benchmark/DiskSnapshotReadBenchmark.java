@@ -0,0 +1,129 @@
+package io.leocad.webcachedimageview.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jakewharton.DiskLruCache;
+
+import io.leocad.webcachedimageview.CacheKey;
+
+
+/**
+ * The reads around the two passes of a disk cache hit, the bounds and then the whole image.
+ * Either each pass opens a new snapshot and reads it through a buffered stream, or both passes
+ * read the file of a single snapshot, rewound in between. This only compares the snapshot
+ * handling and the buffering: BitmapFactory.decodeFileDescriptor(), which CacheManager.getCachedOnDisk()
+ * decodes that file with, only exists on Android, so the decoding is faked on a plain stream.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiskSnapshotReadBenchmark {
+
+	private static final int ENTRY_COUNT = 512;
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
+	private static final int DECODED_SIZE = 100; // Pixels, like a thumbnail
+
+	@Param({"16384", "131072"})
+	public int imageSize;
+
+	private DiskLruCache mDiskCache;
+	private String[] mDiskNames;
+	private final AtomicInteger mCounter = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		File directory = File.createTempFile("disk-snapshot-read-benchmark", "");
+		directory.delete();
+		directory.mkdirs();
+
+		mDiskCache = DiskLruCache.open(directory, 1, 2, Long.MAX_VALUE);
+
+		byte[] image = new byte[imageSize];
+		new Random(42).nextBytes(image);
+
+		mDiskNames = new String[ENTRY_COUNT];
+		for (int i = 0; i < ENTRY_COUNT; i++) {
+			mDiskNames[i] = new CacheKey("http://images.example.com/" + i, 0, 0).getDiskName();
+
+			DiskLruCache.Editor editor = mDiskCache.edit(mDiskNames[i]);
+			OutputStream out = editor.newOutputStream(0);
+			try {
+				out.write(image);
+			} finally {
+				out.close();
+			}
+			editor.set(1, "");
+			editor.commit();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mDiskCache.delete();
+	}
+
+	@Benchmark
+	public int[] snapshotPerPass() throws IOException {
+
+		String diskName = nextDiskName();
+
+		DiskLruCache.Snapshot snapshot = mDiskCache.get(diskName);
+		try {
+			FakeDecoder.decodeBounds(new BufferedInputStream(snapshot.getInputStream(0), IO_BUFFER_SIZE));
+		} finally {
+			snapshot.close();
+		}
+
+		snapshot = mDiskCache.get(diskName);
+		try {
+			return FakeDecoder.decode(new BufferedInputStream(snapshot.getInputStream(0), IO_BUFFER_SIZE), DECODED_SIZE, DECODED_SIZE);
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	@Benchmark
+	public int[] singleSnapshotRewound() throws IOException {
+
+		DiskLruCache.Snapshot snapshot = mDiskCache.get(nextDiskName());
+		try {
+			FileInputStream in = (FileInputStream) snapshot.getInputStream(0);
+
+			FakeDecoder.decodeBounds(in);
+			in.getChannel().position(0);
+			return FakeDecoder.decode(in, DECODED_SIZE, DECODED_SIZE);
+
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	private String nextDiskName() {
+		return mDiskNames[(mCounter.getAndIncrement() & 0x7fffffff) % ENTRY_COUNT];
+	}
+}
@@ -0,0 +1,65 @@
+package io.leocad.webcachedimageview.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Stands in for BitmapFactory, which only exists on Android: it reads the whole encoded
+ * image and allocates a pixel buffer of the decoded size, like a real decode would.
+ */
+final class FakeDecoder {
+
+	// What a bounds-only decode reads: the header of the image
+	private static final int HEADER_SIZE = 4 * 1024;
+
+	private FakeDecoder() {
+	}
+
+	static int decodeBounds(InputStream in) throws IOException {
+
+		byte[] header = new byte[HEADER_SIZE];
+		int total = 0;
+		int read;
+		while (total < HEADER_SIZE && (read = in.read(header, total, HEADER_SIZE - total)) != -1) {
+			total += read;
+		}
+
+		int checksum = 0;
+		for (int i = 0; i < total; i++) {
+			checksum = 31 * checksum + header[i];
+		}
+		return checksum;
+	}
+
+	static int[] decode(byte[] data, int width, int height) {
+
+		int checksum = 0;
+		for (int i = 0; i < data.length; i++) {
+			checksum = 31 * checksum + data[i];
+		}
+
+		return fill(checksum, width, height);
+	}
+
+	static int[] decode(InputStream in, int width, int height) throws IOException {
+
+		byte[] buffer = new byte[8 * 1024];
+		int checksum = 0;
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			for (int i = 0; i < read; i++) {
+				checksum = 31 * checksum + buffer[i];
+			}
+		}
+
+		return fill(checksum, width, height);
+	}
+
+	private static int[] fill(int checksum, int width, int height) {
+
+		int[] pixels = new int[width * height];
+		pixels[0] = checksum;
+		return pixels;
+	}
+}
@@ -0,0 +1,69 @@
+package io.leocad.webcachedimageview.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * A local stand-in for an image server. Every path returns the same bytes, with an ETag
+ * and a max-age, and answers conditional requests with 304.
+ */
+class ImageServer {
+
+	static final String ETAG = "\"benchmark\"";
+
+	private final HttpServer mServer;
+	private final ExecutorService mExecutor;
+	private final byte[] mBody;
+
+	ImageServer(int bodySize) throws IOException {
+
+		mBody = new byte[bodySize];
+		new Random(42).nextBytes(mBody);
+
+		// Otherwise Nagle's algorithm delays every response by ~40ms
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+
+		mExecutor = Executors.newFixedThreadPool(8);
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+		mServer.setExecutor(mExecutor);
+		mServer.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+
+				exchange.getResponseHeaders().set("ETag", ETAG);
+				exchange.getResponseHeaders().set("Cache-Control", "max-age=3600");
+				exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+
+				if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+
+				exchange.sendResponseHeaders(200, mBody.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(mBody);
+				out.close();
+			}
+		});
+		mServer.start();
+	}
+
+	String getUrl(String path) {
+		return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/" + path;
+	}
+
+	void stop() {
+		mServer.stop(0);
+		mExecutor.shutdown();
+	}
+}
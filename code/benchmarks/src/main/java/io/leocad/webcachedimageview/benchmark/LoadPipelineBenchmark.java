@@ -0,0 +1,159 @@
+package io.leocad.webcachedimageview.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jakewharton.DiskLruCache;
+
+import io.leocad.webcachedimageview.CacheKey;
+import io.leocad.webcachedimageview.ConcurrentLruCache;
+import io.leocad.webcachedimageview.DiskEntryMetadata;
+import io.leocad.webcachedimageview.HttpTransport;
+
+
+/**
+ * A whole image load, following the steps BitmapWorkerTask takes, against a local HTTP server.
+ * Decoding is faked by {@link FakeDecoder}, since BitmapFactory only exists on Android.
+ * <ul>
+ * <li>cold: nothing is cached. Download, store on disk, decode and cache in memory.</li>
+ * <li>revalidate: the disk copy is stale. Conditional request (304), then read it from disk.</li>
+ * <li>warmDisk: read the disk copy and decode it.</li>
+ * <li>warmMemory: a memory cache hit.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class LoadPipelineBenchmark {
+
+	private static final int IMAGE_SIZE = 48 * 1024;
+	private static final int WARM_IMAGE_COUNT = 256;
+	private static final int WIDTH = 128;
+	private static final int HEIGHT = 128;
+
+	private ImageServer mServer;
+	private HttpTransport mTransport;
+	private DiskLruCache mDiskCache;
+	private ConcurrentLruCache<CacheKey, int[]> mMemoryCache;
+	private CacheKey[] mWarmKeys;
+	private final AtomicInteger mCounter = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		mServer = new ImageServer(IMAGE_SIZE);
+		mTransport = new HttpTransport();
+
+		File directory = File.createTempFile("load-benchmark", "");
+		directory.delete();
+		directory.mkdirs();
+		mDiskCache = DiskLruCache.open(directory, 1, 2, Long.MAX_VALUE);
+
+		// Large enough for every warm image
+		mMemoryCache = new ConcurrentLruCache<CacheKey, int[]>(WARM_IMAGE_COUNT * 2, WARM_IMAGE_COUNT * 2);
+
+		mWarmKeys = new CacheKey[WARM_IMAGE_COUNT];
+		for (int i = 0; i < WARM_IMAGE_COUNT; i++) {
+			mWarmKeys[i] = new CacheKey(mServer.getUrl("warm/" + i), WIDTH, HEIGHT);
+			loadFromNetwork(mWarmKeys[i]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+
+		mTransport.shutdown();
+		mServer.stop();
+		mDiskCache.delete();
+	}
+
+	@Benchmark
+	public int[] cold() throws IOException {
+
+		// A new URL each time, so nothing is cached
+		CacheKey key = new CacheKey(mServer.getUrl("cold/" + mCounter.getAndIncrement()), WIDTH, HEIGHT);
+		return loadFromNetwork(key);
+	}
+
+	@Benchmark
+	public int[] revalidate() throws IOException {
+
+		CacheKey key = nextWarmKey();
+		HttpTransport.Response response = mTransport.fetch(key.url, ImageServer.ETAG, null);
+		if (!response.isNotModified()) {
+			throw new IllegalStateException("Expected a 304, got " + response.statusCode);
+		}
+
+		return loadFromDisk(key);
+	}
+
+	@Benchmark
+	public int[] warmDisk() throws IOException {
+		return loadFromDisk(nextWarmKey());
+	}
+
+	@Benchmark
+	public int[] warmMemory() {
+		return mMemoryCache.get(nextWarmKey());
+	}
+
+	private CacheKey nextWarmKey() {
+		return mWarmKeys[(mCounter.getAndIncrement() & 0x7fffffff) % WARM_IMAGE_COUNT];
+	}
+
+	private int[] loadFromNetwork(CacheKey key) throws IOException {
+
+		HttpTransport.Response response = mTransport.fetch(key.url, null, null);
+
+		DiskLruCache.Editor editor = mDiskCache.edit(key.getDiskName());
+		if (editor != null) {
+			OutputStream out = editor.newOutputStream(0);
+			try {
+				out.write(response.body);
+			} finally {
+				out.close();
+			}
+			editor.set(1, DiskEntryMetadata.fromResponse(key.url, response).serialize());
+			editor.commit();
+		}
+
+		int[] pixels = FakeDecoder.decode(response.body, key.width, key.height);
+		mMemoryCache.put(key, pixels);
+		return pixels;
+	}
+
+	private int[] loadFromDisk(CacheKey key) throws IOException {
+
+		DiskLruCache.Snapshot snapshot = mDiskCache.get(key.getDiskName());
+		if (snapshot == null) {
+			throw new IllegalStateException("Not on disk: " + key.url);
+		}
+
+		try {
+			return FakeDecoder.decode(snapshot.getInputStream(0), key.width, key.height);
+		} finally {
+			snapshot.close();
+		}
+	}
+}
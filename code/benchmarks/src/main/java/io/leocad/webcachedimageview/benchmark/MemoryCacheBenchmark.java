@@ -0,0 +1,131 @@
+package io.leocad.webcachedimageview.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.leocad.webcachedimageview.CacheKey;
+import io.leocad.webcachedimageview.ConcurrentLruCache;
+import io.leocad.webcachedimageview.LruCache;
+
+
+/**
+ * Lookups in the memory cache from several threads, the way the loader threads and the
+ * main thread hit it while a list scrolls. Misses are followed by a put. The keys follow
+ * a skewed distribution, so a few images are much more popular than the rest.
+ * <p>
+ * Run it with more threads with -t, e.g. -PjmhArgs="MemoryCache -t 8".
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class MemoryCacheBenchmark {
+
+	private static final int KEY_COUNT = 16 * 1024;
+	private static final int CACHE_SIZE = 1024;
+	private static final Object VALUE = new Object();
+
+	@Param({"LruCache", "ConcurrentLruCache", "ConcurrentLruCache+admission"})
+	public String cache;
+
+	private MemoryCache mCache;
+	private CacheKey[] mKeys;
+	private int[] mSequence;
+
+	/**
+	 * The operations the loader needs, so both caches can be measured with the same code.
+	 */
+	private interface MemoryCache {
+		Object get(CacheKey key);
+		void put(CacheKey key, Object value);
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int position;
+
+		@Setup(Level.Iteration)
+		public void setUp() {
+			position = new Random().nextInt(KEY_COUNT);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		mKeys = new CacheKey[KEY_COUNT];
+		for (int i = 0; i < KEY_COUNT; i++) {
+			mKeys[i] = new CacheKey("http://images.example.com/photos/" + i + ".jpg", 256, 256);
+		}
+
+		// Zipf-like: key k is picked with a probability proportional to 1 / (k + 1)
+		Random random = new Random(42);
+		mSequence = new int[KEY_COUNT * 4];
+		double harmonic = Math.log(KEY_COUNT) + 0.5772;
+		for (int i = 0; i < mSequence.length; i++) {
+			mSequence[i] = Math.min(KEY_COUNT - 1, (int) Math.exp(random.nextDouble() * harmonic) - 1);
+		}
+
+		if ("LruCache".equals(cache)) {
+			final LruCache<CacheKey, Object> lruCache = new LruCache<CacheKey, Object>(CACHE_SIZE);
+			mCache = new MemoryCache() {
+				@Override
+				public Object get(CacheKey key) {
+					return lruCache.get(key);
+				}
+
+				@Override
+				public void put(CacheKey key, Object value) {
+					lruCache.put(key, value);
+				}
+			};
+
+		} else {
+			final ConcurrentLruCache<CacheKey, Object> concurrentCache = new ConcurrentLruCache<CacheKey, Object>(CACHE_SIZE, CACHE_SIZE);
+			concurrentCache.setAdmissionPolicyEnabled(cache.endsWith("+admission"));
+			mCache = new MemoryCache() {
+				@Override
+				public Object get(CacheKey key) {
+					return concurrentCache.get(key);
+				}
+
+				@Override
+				public void put(CacheKey key, Object value) {
+					concurrentCache.put(key, value);
+				}
+			};
+		}
+	}
+
+	@Benchmark
+	public Object getOrPut(Cursor cursor) {
+
+		int position = cursor.position;
+		cursor.position = position + 1 == mSequence.length ? 0 : position + 1;
+
+		CacheKey key = mKeys[mSequence[position]];
+		Object value = mCache.get(key);
+		if (value == null) {
+			mCache.put(key, VALUE);
+		}
+
+		return value;
+	}
+}
@@ -0,0 +1,90 @@
+package io.leocad.webcachedimageview;
+
+import junit.framework.TestCase;
+
+
+public class CacheKeyTest extends TestCase {
+
+	private static final String URL = "http://images.example.com/1.jpg";
+
+	public void testEqualKeys() {
+
+		CacheKey key = new CacheKey(URL, 100, 200, CacheKey.CONFIG_RGB_565, false);
+		CacheKey same = new CacheKey(new String(URL), 100, 200, CacheKey.CONFIG_RGB_565, false);
+
+		assertEquals(key, same);
+		assertEquals(key.hashCode(), same.hashCode());
+	}
+
+	public void testPurgeableIsNotPartOfTheKey() {
+
+		CacheKey key = new CacheKey(URL, 100, 200, CacheKey.CONFIG_ARGB_8888, false);
+		CacheKey purgeable = new CacheKey(URL, 100, 200, CacheKey.CONFIG_ARGB_8888, true);
+
+		assertEquals(key, purgeable);
+		assertEquals(key.hashCode(), purgeable.hashCode());
+	}
+
+	public void testDifferentKeys() {
+
+		CacheKey key = new CacheKey(URL, 100, 200);
+
+		assertFalse(key.equals(new CacheKey(URL + "?2", 100, 200)));
+		assertFalse(key.equals(new CacheKey(URL, 101, 200)));
+		assertFalse(key.equals(new CacheKey(URL, 100, 201)));
+		assertFalse(key.equals(new CacheKey(URL, 100, 200, CacheKey.CONFIG_RGB_565, false)));
+		assertFalse(key.equals(key.forTile(100, 1, 0, 0)));
+		assertFalse(key.forTile(256, 1, 0, 0).equals(key.forTile(256, 2, 0, 0)));
+		assertFalse(key.forTile(256, 1, 0, 0).equals(key.forTile(256, 1, 1, 0)));
+		assertFalse(key.forTile(256, 1, 0, 0).equals(key.forTile(256, 1, 0, 1)));
+		assertFalse(key.equals(null));
+		assertFalse(key.equals(URL));
+	}
+
+	public void testHashCollisionsAreNotEqual() {
+
+		// "Aa" and "BB" have the same String hash code
+		CacheKey key = new CacheKey("Aa", 100, 100);
+		CacheKey colliding = new CacheKey("BB", 100, 100);
+
+		assertEquals(key.hashCode(), colliding.hashCode());
+		assertFalse(key.equals(colliding));
+	}
+
+	public void testWithSize() {
+
+		CacheKey key = new CacheKey(URL, 100, 200, CacheKey.CONFIG_RGB_565, true);
+
+		assertSame(key, key.withSize(100, 200));
+		assertEquals(new CacheKey(URL, 50, 60, CacheKey.CONFIG_RGB_565, true), key.withSize(50, 60));
+		assertTrue(key.withSize(50, 60).purgeable);
+	}
+
+	public void testForTile() {
+
+		CacheKey tile = new CacheKey(URL, 100, 200).forTile(256, 2, 3, 4);
+
+		assertTrue(tile.isTile());
+		assertFalse(new CacheKey(URL, 100, 200).isTile());
+		assertEquals(256, tile.width);
+		assertEquals(256, tile.height);
+		assertEquals(tile, new CacheKey(URL, 1, 1).forTile(256, 2, 3, 4));
+	}
+
+	public void testDiskNameIsTheSha1OfTheUrl() {
+
+		// echo -n "abc" | sha1sum
+		assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", new CacheKey("abc", 0, 0).getDiskName());
+	}
+
+	public void testDiskNameOnlyDependsOnTheUrl() {
+
+		CacheKey key = new CacheKey(URL, 100, 200);
+		String diskName = key.getDiskName();
+
+		assertEquals(diskName, new CacheKey(URL, 300, 400, CacheKey.CONFIG_RGB_565, false).getDiskName());
+		assertEquals(diskName, key.withSize(10, 20).getDiskName());
+		assertEquals(diskName, key.forTile(256, 1, 0, 0).getDiskName());
+		assertFalse(diskName.equals(new CacheKey(URL + "?2", 100, 200).getDiskName()));
+	}
+}
@@ -0,0 +1,186 @@
+package io.leocad.webcachedimageview;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+
+public class ConcurrentLruCacheTest extends TestCase {
+
+	public void testEvictsTheLeastRecentlyUsed() {
+
+		RecordingCache cache = new RecordingCache(3);
+		cache.put("a", "A");
+		cache.put("b", "B");
+		cache.put("c", "C");
+
+		// Replayed into the LRU order by the next put
+		assertEquals("A", cache.get("a"));
+		cache.put("d", "D");
+
+		assertNull(cache.get("b"));
+		assertEquals("A", cache.get("a"));
+		assertEquals("C", cache.get("c"));
+		assertEquals("D", cache.get("d"));
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.evictionCount());
+		assertEquals("[b]", cache.evicted.toString());
+	}
+
+	public void testEvictsBySize() {
+
+		ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(10, 4) {
+			@Override
+			protected int sizeOf(String key, String value) {
+				return value.length();
+			}
+		};
+
+		cache.put("a", "aaaa");
+		cache.put("b", "bbbb");
+		cache.put("c", "cccc");
+
+		assertNull(cache.get("a"));
+		assertEquals(8, cache.size());
+	}
+
+	public void testReplacingAValueIsNotAnEviction() {
+
+		RecordingCache cache = new RecordingCache(3);
+		cache.put("a", "A");
+
+		assertEquals("A", cache.put("a", "A2"));
+		assertEquals("A2", cache.get("a"));
+		assertEquals(1, cache.size());
+		assertEquals(0, cache.evictionCount());
+		assertEquals("[a, a]", cache.added.toString());
+	}
+
+	public void testAdmissionRejectsACandidateNoMorePopularThanTheVictim() {
+
+		RecordingCache cache = new RecordingCache(2);
+		cache.setAdmissionPolicyEnabled(true);
+		cache.put("a", "A");
+		cache.put("b", "B");
+		cache.get("a");
+		cache.get("b");
+
+		assertNull(cache.put("c", "C"));
+
+		assertNull(cache.get("c"));
+		assertEquals("A", cache.get("a"));
+		assertEquals("B", cache.get("b"));
+		assertEquals(1, cache.rejectionCount());
+		assertEquals(0, cache.evictionCount());
+		// Not reported as added, so it's not indexed anywhere
+		assertEquals("[a, b]", cache.added.toString());
+	}
+
+	public void testAdmissionAdmitsACandidateMorePopularThanTheVictim() {
+
+		RecordingCache cache = new RecordingCache(2);
+		cache.setAdmissionPolicyEnabled(true);
+		cache.put("a", "A");
+		cache.put("b", "B");
+
+		// Misses count too
+		for (int i = 0; i < 3; i++) {
+			assertNull(cache.get("c"));
+		}
+		cache.put("c", "C");
+
+		assertEquals("C", cache.get("c"));
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.rejectionCount());
+		assertEquals("[a, b, c]", cache.added.toString());
+		assertEquals("[a]", cache.evicted.toString());
+	}
+
+	public void testAdmissionAdmitsEverythingUntilTheCacheIsFull() {
+
+		RecordingCache cache = new RecordingCache(3);
+		cache.setAdmissionPolicyEnabled(true);
+		cache.put("a", "A");
+		cache.put("b", "B");
+		cache.put("c", "C");
+
+		assertEquals(3, cache.size());
+		assertEquals(0, cache.rejectionCount());
+	}
+
+	public void testResizeEvicts() {
+
+		RecordingCache cache = new RecordingCache(3);
+		cache.put("a", "A");
+		cache.put("b", "B");
+		cache.put("c", "C");
+		cache.resize(1);
+
+		assertEquals(1, cache.size());
+		assertEquals("C", cache.get("c"));
+		assertEquals("[a, b]", cache.evicted.toString());
+	}
+
+	public void testConcurrentReadsAndWritesStayWithinTheMaxSize() throws InterruptedException {
+
+		final ConcurrentLruCache<Integer, Integer> cache = new ConcurrentLruCache<Integer, Integer>(64, 64);
+		cache.setAdmissionPolicyEnabled(true);
+		final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 20000; i++) {
+							Integer key = (i * 31 + seed) % 256;
+							Integer value = cache.get(key);
+							if (value == null) {
+								cache.put(key, key);
+							} else if (!value.equals(key)) {
+								throw new AssertionError("Wrong value for " + key + ": " + value);
+							}
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals("[]", errors.toString());
+		assertTrue(cache.size() <= 64);
+		assertEquals(cache.size(), cache.snapshot().size());
+	}
+
+	private static class RecordingCache extends ConcurrentLruCache<String, String> {
+
+		final ArrayList<String> added = new ArrayList<String>();
+		final ArrayList<String> evicted = new ArrayList<String>();
+
+		RecordingCache(int maxSize) {
+			super(maxSize, maxSize);
+		}
+
+		@Override
+		protected synchronized void entryAdded(String key, String value) {
+			added.add(key);
+		}
+
+		@Override
+		protected synchronized void entryRemoved(boolean evicted, String key, String oldValue, String newValue) {
+			if (evicted) {
+				this.evicted.add(key);
+			}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package io.leocad.webcachedimageview;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jakewharton.DiskLruCache;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Reads the disk cache on several threads without any lock, while another thread replaces
+ * the entries, the way CacheManager and its DiskWriter do. Every read must see a whole
+ * entry: its image and metadata from the same write.
+ */
+public class DiskCacheConcurrencyTest extends TestCase {
+
+	private static final int ENTRY_COUNT = 16;
+	private static final int IMAGE_SIZE = 32 * 1024;
+	private static final int READER_COUNT = 4;
+	private static final int WRITE_COUNT = 400;
+	private static final int DISK_VALUE_DATA = 0;
+	private static final int DISK_VALUE_METADATA = 1;
+
+	private File mDirectory;
+	private DiskLruCache mDiskCache;
+	private CacheKey[] mKeys;
+
+	@Override
+	protected void setUp() throws IOException {
+
+		mDirectory = File.createTempFile("disk-concurrency-test", "");
+		mDirectory.delete();
+		mDirectory.mkdirs();
+		mDiskCache = DiskLruCache.open(mDirectory, 1, 2, Long.MAX_VALUE);
+
+		mKeys = new CacheKey[ENTRY_COUNT];
+		for (int i = 0; i < ENTRY_COUNT; i++) {
+			mKeys[i] = new CacheKey("http://images.example.com/" + i, 0, 0);
+			write(mKeys[i], 0);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		mDiskCache.delete();
+	}
+
+	public void testReadersAlwaysSeeWholeEntries() throws Exception {
+
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		final AtomicInteger readCount = new AtomicInteger();
+		final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+
+		Thread[] readers = new Thread[READER_COUNT];
+		for (int r = 0; r < READER_COUNT; r++) {
+			final int offset = r;
+			readers[r] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = offset; writing.get() || i < offset + ENTRY_COUNT; i++) {
+							read(mKeys[i % ENTRY_COUNT]);
+							readCount.incrementAndGet();
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			readers[r].start();
+		}
+
+		try {
+			for (int i = 0; i < WRITE_COUNT; i++) {
+				write(mKeys[i % ENTRY_COUNT], i / ENTRY_COUNT + 1);
+				if (i % ENTRY_COUNT == ENTRY_COUNT - 1) {
+					// Batched, like the disk writer does
+					mDiskCache.flush();
+				}
+			}
+		} finally {
+			writing.set(false);
+		}
+
+		for (Thread reader : readers) {
+			reader.join(30 * 1000);
+			assertFalse(reader.isAlive());
+		}
+
+		assertEquals("[]", errors.toString());
+		assertTrue(readCount.get() >= READER_COUNT * ENTRY_COUNT);
+
+		// The last generation of every entry is there
+		for (CacheKey key : mKeys) {
+			assertEquals(WRITE_COUNT / ENTRY_COUNT, read(key));
+		}
+	}
+
+	/**
+	 * @return the generation of the entry.
+	 */
+	private int read(CacheKey key) throws IOException {
+
+		DiskLruCache.Snapshot snapshot = mDiskCache.get(key.getDiskName());
+		if (snapshot == null) {
+			throw new AssertionError("Missing " + key.url);
+		}
+
+		byte[] image = new byte[IMAGE_SIZE];
+		DiskEntryMetadata metadata;
+		try {
+			metadata = DiskEntryMetadata.parse(snapshot.getString(DISK_VALUE_METADATA));
+
+			InputStream in = snapshot.getInputStream(DISK_VALUE_DATA);
+			int read = 0;
+			int count;
+			while (read < IMAGE_SIZE && (count = in.read(image, read, IMAGE_SIZE - read)) != -1) {
+				read += count;
+			}
+			if (read != IMAGE_SIZE || in.read() != -1) {
+				throw new AssertionError("Truncated image for " + key.url);
+			}
+
+		} finally {
+			snapshot.close();
+		}
+
+		if (metadata == null || !metadata.url.equals(key.url)) {
+			throw new AssertionError("Wrong metadata for " + key.url + ": " + metadata);
+		}
+
+		int generation = Integer.parseInt(metadata.etag);
+		byte[] expected = new byte[IMAGE_SIZE];
+		Arrays.fill(expected, (byte) generation);
+		if (!Arrays.equals(expected, image)) {
+			throw new AssertionError("Image and metadata from different writes for " + key.url);
+		}
+
+		return generation;
+	}
+
+	private void write(CacheKey key, int generation) throws IOException {
+
+		DiskLruCache.Editor editor = mDiskCache.edit(key.getDiskName());
+		assertNotNull(editor);
+
+		byte[] image = new byte[IMAGE_SIZE];
+		Arrays.fill(image, (byte) generation);
+
+		OutputStream out = editor.newOutputStream(DISK_VALUE_DATA);
+		try {
+			out.write(image);
+		} finally {
+			out.close();
+		}
+		editor.set(DISK_VALUE_METADATA, new DiskEntryMetadata(key.url, String.valueOf(generation), null,
+				Long.MAX_VALUE, HttpTransport.LIFETIME_UNKNOWN).serialize());
+		editor.commit();
+	}
+}
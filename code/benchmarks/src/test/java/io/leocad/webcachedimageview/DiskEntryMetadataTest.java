@@ -0,0 +1,126 @@
+package io.leocad.webcachedimageview;
+
+import junit.framework.TestCase;
+
+
+public class DiskEntryMetadataTest extends TestCase {
+
+	private static final String URL = "http://images.example.com/1.jpg";
+	private static final String ETAG = "\"v1\"";
+	private static final String LAST_MODIFIED = "Mon, 05 Jan 2015 10:00:00 GMT";
+	private static final long NOW = 1420452000000L;
+	private static final long HOUR = 60 * 60 * 1000;
+
+	public void testSerializeAndParse() {
+
+		DiskEntryMetadata metadata = DiskEntryMetadata.parse(
+				new DiskEntryMetadata(URL, ETAG, LAST_MODIFIED, NOW + HOUR, HOUR).serialize());
+
+		assertEquals(URL, metadata.url);
+		assertEquals(ETAG, metadata.etag);
+		assertEquals(LAST_MODIFIED, metadata.lastModified);
+		assertEquals(NOW + HOUR, metadata.expiresAt);
+		assertEquals(HOUR, metadata.freshnessLifetime);
+	}
+
+	public void testSerializeAndParseWithoutValidators() {
+
+		DiskEntryMetadata metadata = DiskEntryMetadata.parse(
+				new DiskEntryMetadata(URL, null, null, Long.MAX_VALUE, HttpTransport.LIFETIME_UNKNOWN).serialize());
+
+		assertEquals(URL, metadata.url);
+		assertNull(metadata.etag);
+		assertNull(metadata.lastModified);
+		assertEquals(Long.MAX_VALUE, metadata.expiresAt);
+		assertEquals(HttpTransport.LIFETIME_UNKNOWN, metadata.freshnessLifetime);
+	}
+
+	public void testParseEntriesWithoutTheLifetime() {
+
+		DiskEntryMetadata expiring = DiskEntryMetadata.parse((NOW + HOUR) + "\n" + ETAG + "\n\n" + URL);
+		assertEquals(URL, expiring.url);
+		assertEquals(ETAG, expiring.etag);
+		assertNull(expiring.lastModified);
+		assertEquals(NOW + HOUR, expiring.expiresAt);
+		// Lost, so it's revalidated every time
+		assertEquals(0, expiring.freshnessLifetime);
+
+		DiskEntryMetadata forever = DiskEntryMetadata.parse(Long.MAX_VALUE + "\n\n\n" + URL);
+		assertEquals(HttpTransport.LIFETIME_UNKNOWN, forever.freshnessLifetime);
+	}
+
+	public void testParseMalformed() {
+
+		assertNull(DiskEntryMetadata.parse(null));
+		assertNull(DiskEntryMetadata.parse(""));
+		assertNull(DiskEntryMetadata.parse(URL));
+		assertNull(DiskEntryMetadata.parse("soon\n0\n\n\n" + URL));
+		assertNull(DiskEntryMetadata.parse(URL + "\n" + ETAG));
+	}
+
+	public void testIsFresh() {
+
+		DiskEntryMetadata metadata = new DiskEntryMetadata(URL, ETAG, null, NOW + HOUR, HOUR);
+
+		assertTrue(metadata.isFresh(NOW));
+		assertFalse(metadata.isFresh(NOW + HOUR));
+	}
+
+	public void testRevalidatedWithoutFreshnessRestartsTheStoredLifetime() {
+
+		DiskEntryMetadata stored = new DiskEntryMetadata(URL, ETAG, LAST_MODIFIED, NOW - HOUR, HOUR);
+		DiskEntryMetadata revalidated = stored.revalidated(notModified(null, null, HttpTransport.LIFETIME_UNKNOWN, 0), NOW);
+
+		assertEquals(NOW + HOUR, revalidated.expiresAt);
+		assertEquals(HOUR, revalidated.freshnessLifetime);
+		assertEquals(ETAG, revalidated.etag);
+		assertEquals(LAST_MODIFIED, revalidated.lastModified);
+		assertEquals(URL, revalidated.url);
+	}
+
+	public void testRevalidatedTakesTheNewFreshnessAndValidators() {
+
+		DiskEntryMetadata stored = new DiskEntryMetadata(URL, ETAG, LAST_MODIFIED, NOW - HOUR, HOUR);
+		DiskEntryMetadata revalidated = stored.revalidated(notModified("\"v2\"", null, 2 * HOUR, 0), NOW);
+
+		assertEquals(NOW + 2 * HOUR, revalidated.expiresAt);
+		assertEquals(2 * HOUR, revalidated.freshnessLifetime);
+		assertEquals("\"v2\"", revalidated.etag);
+		assertEquals(LAST_MODIFIED, revalidated.lastModified);
+	}
+
+	public void testRevalidatedSubtractsTheAge() {
+
+		DiskEntryMetadata stored = new DiskEntryMetadata(URL, ETAG, null, NOW - HOUR, HOUR);
+		long age = 10 * 60 * 1000;
+
+		assertEquals(NOW + HOUR - age, stored.revalidated(notModified(null, null, HttpTransport.LIFETIME_UNKNOWN, age), NOW).expiresAt);
+		// Already stale in the caches it came through
+		assertEquals(NOW, stored.revalidated(notModified(null, null, HttpTransport.LIFETIME_UNKNOWN, 2 * HOUR), NOW).expiresAt);
+	}
+
+	public void testRevalidatedNeverExpiresIfTheLifetimeIsUnknown() {
+
+		DiskEntryMetadata stored = new DiskEntryMetadata(URL, ETAG, null, Long.MAX_VALUE, HttpTransport.LIFETIME_UNKNOWN);
+		DiskEntryMetadata revalidated = stored.revalidated(notModified(null, null, HttpTransport.LIFETIME_UNKNOWN, 0), NOW);
+
+		assertEquals(Long.MAX_VALUE, revalidated.expiresAt);
+		assertEquals(HttpTransport.LIFETIME_UNKNOWN, revalidated.freshnessLifetime);
+	}
+
+	public void testFromResponse() {
+
+		HttpTransport.Response response = new HttpTransport.Response(200, new byte[0], ETAG, LAST_MODIFIED, HOUR, 0, NOW);
+		DiskEntryMetadata metadata = DiskEntryMetadata.fromResponse(URL, response);
+
+		assertEquals(URL, metadata.url);
+		assertEquals(ETAG, metadata.etag);
+		assertEquals(LAST_MODIFIED, metadata.lastModified);
+		assertEquals(NOW + HOUR, metadata.expiresAt);
+		assertEquals(HOUR, metadata.freshnessLifetime);
+	}
+
+	private static HttpTransport.Response notModified(String etag, String lastModified, long freshnessLifetime, long age) {
+		return new HttpTransport.Response(304, null, etag, lastModified, freshnessLifetime, age, NOW);
+	}
+}
@@ -0,0 +1,62 @@
+package io.leocad.webcachedimageview;
+
+import junit.framework.TestCase;
+
+
+public class FrequencySketchTest extends TestCase {
+
+	public void testCountsIncrements() {
+
+		FrequencySketch sketch = new FrequencySketch(16);
+		assertEquals(0, sketch.frequency("a"));
+
+		sketch.increment("a");
+		sketch.increment("a");
+		sketch.increment("b");
+
+		assertEquals(2, sketch.frequency("a"));
+		assertEquals(1, sketch.frequency("b"));
+		assertEquals(0, sketch.frequency("c"));
+	}
+
+	public void testSaturatesAt15() {
+
+		FrequencySketch sketch = new FrequencySketch(16);
+		for (int i = 0; i < 20; i++) {
+			sketch.increment("a");
+		}
+
+		assertEquals(15, sketch.frequency("a"));
+	}
+
+	public void testHalvesTheCountersPeriodically() {
+
+		// 16 counters per row, so it resets after 10 * 16 additions
+		FrequencySketch sketch = new FrequencySketch(16);
+		for (int i = 0; i < 12; i++) {
+			sketch.increment("popular");
+		}
+
+		for (int i = 0; i < 200; i++) {
+			sketch.increment("other-" + i);
+		}
+
+		int frequency = sketch.frequency("popular");
+		assertTrue("Not halved: " + frequency, frequency < 12);
+		assertTrue("Lost: " + frequency, frequency >= 6);
+	}
+
+	public void testNeverUnderestimates() {
+
+		FrequencySketch sketch = new FrequencySketch(64);
+		for (int i = 0; i < 64; i++) {
+			for (int j = 0; j <= i % 8; j++) {
+				sketch.increment(i);
+			}
+		}
+
+		for (int i = 0; i < 64; i++) {
+			assertTrue(sketch.frequency(i) >= i % 8 + 1);
+		}
+	}
+}
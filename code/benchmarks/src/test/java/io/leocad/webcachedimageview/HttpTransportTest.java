@@ -0,0 +1,367 @@
+package io.leocad.webcachedimageview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Runs the transport against a local server, and checks how it reads the caching headers.
+ */
+public class HttpTransportTest extends TestCase {
+
+	private static final String ETAG = "\"v1\"";
+	private static final long NOW = 1420452000000L;
+	private static final long HOUR = 60 * 60 * 1000;
+
+	private HttpServer mServer;
+	private ExecutorService mExecutor;
+	private HttpTransport mTransport;
+	private byte[] mBody;
+	// Lets the handlers that stall return, once the test is done
+	private final CountDownLatch mRelease = new CountDownLatch(1);
+	private final Set<Integer> mClientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+	private volatile int mRequestCount;
+
+	@Override
+	protected void setUp() throws IOException {
+
+		mBody = new byte[64 * 1024];
+		new Random(42).nextBytes(mBody);
+
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+
+		mExecutor = Executors.newFixedThreadPool(4);
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+		mServer.setExecutor(mExecutor);
+		mServer.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				mRequestCount++;
+				mClientPorts.add(exchange.getRemoteAddress().getPort());
+				try {
+					serve(exchange);
+				} catch (InterruptedException e) {
+					// Stopped
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		mServer.start();
+
+		mTransport = new HttpTransport(2, 4, 1000, 1000);
+	}
+
+	@Override
+	protected void tearDown() {
+
+		mRelease.countDown();
+		mTransport.shutdown();
+		mServer.stop(0);
+		mExecutor.shutdownNow();
+	}
+
+	private void serve(HttpExchange exchange) throws IOException, InterruptedException {
+
+		String path = exchange.getRequestURI().getPath();
+		exchange.getResponseHeaders().set("ETag", ETAG);
+		exchange.getResponseHeaders().set("Cache-Control", "max-age=3600");
+
+		if ("/gzip".equals(path)) {
+			String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+			if (acceptEncoding == null || !acceptEncoding.contains("gzip")) {
+				exchange.sendResponseHeaders(406, -1);
+				return;
+			}
+
+			ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+			gzip.write(mBody);
+			gzip.close();
+
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			send(exchange, gzipped.toByteArray());
+
+		} else if ("/conditional".equals(path)) {
+			if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))
+					|| exchange.getRequestHeaders().getFirst("If-Modified-Since") != null) {
+				exchange.sendResponseHeaders(304, -1);
+			} else {
+				send(exchange, mBody);
+			}
+
+		} else if ("/missing".equals(path)) {
+			exchange.sendResponseHeaders(404, -1);
+
+		} else if ("/stall-headers".equals(path)) {
+			mRelease.await(10, TimeUnit.SECONDS);
+			send(exchange, mBody);
+
+		} else if ("/stall-body".equals(path)) {
+			exchange.sendResponseHeaders(200, mBody.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(mBody, 0, 1024);
+			out.flush();
+			mRelease.await(10, TimeUnit.SECONDS);
+			out.write(mBody, 1024, mBody.length - 1024);
+			out.close();
+
+		} else {
+			send(exchange, mBody);
+		}
+	}
+
+	private static void send(HttpExchange exchange, byte[] body) throws IOException {
+
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private String getUrl(String path) {
+		return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+	}
+
+	public void testFetch() throws IOException {
+
+		long before = System.currentTimeMillis();
+		HttpTransport.Response response = mTransport.fetch(getUrl("/image"), null, null);
+
+		assertEquals(200, response.statusCode);
+		assertFalse(response.isNotModified());
+		assertTrue(Arrays.equals(mBody, response.body));
+		assertEquals(ETAG, response.etag);
+		assertEquals(HOUR, response.freshnessLifetime);
+		assertTrue(response.expiresAt >= before + HOUR);
+	}
+
+	public void testGzippedResponsesAreDecompressed() throws IOException {
+
+		HttpTransport.Response response = mTransport.fetch(getUrl("/gzip"), null, null);
+
+		assertEquals(200, response.statusCode);
+		assertTrue(Arrays.equals(mBody, response.body));
+	}
+
+	public void testNotModified() throws IOException {
+
+		HttpTransport.Response byEtag = mTransport.fetch(getUrl("/conditional"), ETAG, null);
+		assertTrue(byEtag.isNotModified());
+		assertNull(byEtag.body);
+		assertEquals(ETAG, byEtag.etag);
+		assertEquals(HOUR, byEtag.freshnessLifetime);
+
+		HttpTransport.Response byDate = mTransport.fetch(getUrl("/conditional"), null, DateUtils.formatDate(new Date(NOW)));
+		assertTrue(byDate.isNotModified());
+
+		HttpTransport.Response modified = mTransport.fetch(getUrl("/conditional"), "\"v0\"", null);
+		assertFalse(modified.isNotModified());
+		assertTrue(Arrays.equals(mBody, modified.body));
+	}
+
+	public void testHttpErrorsThrow() {
+
+		try {
+			mTransport.fetch(getUrl("/missing"), null, null);
+			fail();
+		} catch (HttpTransport.CancelledException e) {
+			fail();
+		} catch (IOException expected) {
+		}
+	}
+
+	public void testConnectionsAreReused() throws IOException {
+
+		for (int i = 0; i < 5; i++) {
+			mTransport.fetch(getUrl("/image"), null, null);
+		}
+
+		assertEquals(5, mRequestCount);
+		assertEquals(1, mClientPorts.size());
+	}
+
+	public void testReadTimeout() {
+
+		long start = System.currentTimeMillis();
+		try {
+			mTransport.fetch(getUrl("/stall-headers"), null, null);
+			fail();
+		} catch (IOException expected) {
+		}
+
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
+	public void testCancelledBeforeTheRequest() throws IOException {
+
+		try {
+			mTransport.fetch(getUrl("/image"), null, null, new Signal(true));
+			fail();
+		} catch (HttpTransport.CancelledException e) {
+			assertEquals(-1, e.bytesSkipped);
+		}
+
+		assertEquals(0, mRequestCount);
+	}
+
+	public void testCancelWhileWaitingForTheResponse() throws IOException {
+
+		HttpTransport transport = new HttpTransport(2, 4, 1000, 10000);
+		try {
+			long start = System.currentTimeMillis();
+			try {
+				transport.fetch(getUrl("/stall-headers"), null, null, cancelLater());
+				fail();
+			} catch (HttpTransport.CancelledException expected) {
+			}
+
+			// Well before the read timeout
+			assertTrue(System.currentTimeMillis() - start < 5000);
+
+		} finally {
+			transport.shutdown();
+		}
+	}
+
+	public void testCancelWhileReadingTheBody() throws IOException {
+
+		HttpTransport transport = new HttpTransport(2, 4, 1000, 10000);
+		try {
+			long start = System.currentTimeMillis();
+			try {
+				transport.fetch(getUrl("/stall-body"), null, null, cancelLater());
+				fail();
+			} catch (HttpTransport.CancelledException e) {
+				assertTrue(e.bytesSkipped > 0);
+				assertTrue(e.bytesSkipped <= mBody.length - 1024);
+			}
+
+			assertTrue(System.currentTimeMillis() - start < 5000);
+
+		} finally {
+			transport.shutdown();
+		}
+	}
+
+	public void testFreshnessFromMaxAge() {
+
+		assertEquals(HOUR, HttpTransport.computeFreshnessLifetime(response("Cache-Control", "public, max-age=3600"), NOW));
+		assertEquals(0, HttpTransport.computeFreshnessLifetime(response("Cache-Control", "max-age=-1"), NOW));
+	}
+
+	public void testFreshnessFromNoCache() {
+
+		assertEquals(0, HttpTransport.computeFreshnessLifetime(response("Cache-Control", "no-cache"), NOW));
+		assertEquals(0, HttpTransport.computeFreshnessLifetime(response("Cache-Control", "no-store, max-age=3600"), NOW));
+	}
+
+	public void testFreshnessFromExpires() {
+
+		// Measured with the server's clock, which is an hour behind ours
+		HttpResponse response = response("Expires", DateUtils.formatDate(new Date(NOW + HOUR)));
+		response.addHeader("Date", DateUtils.formatDate(new Date(NOW - HOUR)));
+		assertEquals(2 * HOUR, HttpTransport.computeFreshnessLifetime(response, NOW));
+
+		// Cache-Control wins
+		response.addHeader("Cache-Control", "max-age=60");
+		assertEquals(60 * 1000, HttpTransport.computeFreshnessLifetime(response, NOW));
+	}
+
+	public void testFreshnessFromAnInvalidExpires() {
+		assertEquals(0, HttpTransport.computeFreshnessLifetime(response("Expires", "0"), NOW));
+	}
+
+	public void testFreshnessFromLastModified() {
+
+		HttpResponse response = response("Last-Modified", DateUtils.formatDate(new Date(NOW - 10 * HOUR)));
+		assertEquals(HOUR, HttpTransport.computeFreshnessLifetime(response, NOW));
+	}
+
+	public void testUnknownFreshness() {
+		assertEquals(HttpTransport.LIFETIME_UNKNOWN, HttpTransport.computeFreshnessLifetime(response("ETag", ETAG), NOW));
+	}
+
+	public void testAge() {
+
+		assertEquals(600 * 1000, HttpTransport.getAge(response("Age", "600")));
+		assertEquals(0, HttpTransport.getAge(response("ETag", ETAG)));
+		assertEquals(0, HttpTransport.getAge(response("Age", "soon")));
+		assertEquals(0, HttpTransport.getAge(response("Age", "-5")));
+	}
+
+	public void testExpiresAt() {
+
+		assertEquals(NOW + HOUR, HttpTransport.computeExpiresAt(HOUR, 0, NOW));
+		assertEquals(NOW + HOUR / 2, HttpTransport.computeExpiresAt(HOUR, HOUR / 2, NOW));
+		assertEquals(NOW, HttpTransport.computeExpiresAt(HOUR, 2 * HOUR, NOW));
+		assertEquals(Long.MAX_VALUE, HttpTransport.computeExpiresAt(HttpTransport.LIFETIME_UNKNOWN, 0, NOW));
+	}
+
+	private static HttpResponse response(String header, String value) {
+
+		HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+		response.addHeader(header, value);
+		return response;
+	}
+
+	/**
+	 * @return a cancellation that cancels the request from another thread, once it's running.
+	 */
+	private static Signal cancelLater() {
+
+		final Signal signal = new Signal(false);
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+					return;
+				}
+				signal.cancelled = true;
+				signal.abortIfCancelled();
+			}
+		}.start();
+
+		return signal;
+	}
+
+	private static class Signal extends HttpTransport.CancellationSignal {
+
+		volatile boolean cancelled;
+
+		Signal(boolean cancelled) {
+			this.cancelled = cancelled;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+}
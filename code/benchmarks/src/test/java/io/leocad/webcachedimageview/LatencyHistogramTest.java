@@ -0,0 +1,91 @@
+package io.leocad.webcachedimageview;
+
+import junit.framework.TestCase;
+
+
+public class LatencyHistogramTest extends TestCase {
+
+	public void testEmpty() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0.0, histogram.getMean());
+		assertEquals(0, histogram.getPercentile(50));
+	}
+
+	public void testBuckets() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(0);
+		histogram.record(1);
+		histogram.record(2);
+		histogram.record(3);
+		histogram.record(4);
+		histogram.record(-5);
+
+		long[] buckets = histogram.getBucketCounts();
+		assertEquals(2, buckets[0]);
+		assertEquals(1, buckets[1]);
+		assertEquals(2, buckets[2]);
+		assertEquals(1, buckets[3]);
+		assertEquals(6, histogram.getCount());
+	}
+
+	public void testBucketUpperBounds() {
+
+		assertEquals(0, LatencyHistogram.getBucketUpperBound(0));
+		assertEquals(1, LatencyHistogram.getBucketUpperBound(1));
+		assertEquals(3, LatencyHistogram.getBucketUpperBound(2));
+		assertEquals(1023, LatencyHistogram.getBucketUpperBound(10));
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.getBucketUpperBound(LatencyHistogram.BUCKET_COUNT - 1));
+	}
+
+	public void testPercentiles() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i);
+		}
+
+		// 32-63ms are ranks 32 to 63, and 64-100ms ranks 64 to 100
+		assertEquals(1, histogram.getPercentile(1));
+		assertEquals(63, histogram.getPercentile(50));
+		assertEquals(127, histogram.getPercentile(90));
+		assertEquals(127, histogram.getPercentile(100));
+		assertEquals(50.5, histogram.getMean());
+	}
+
+	public void testPercentileOfASkewedDistribution() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 99; i++) {
+			histogram.record(5);
+		}
+		histogram.record(5000);
+
+		assertEquals(7, histogram.getPercentile(50));
+		assertEquals(7, histogram.getPercentile(99));
+		assertEquals(8191, histogram.getPercentile(99.9));
+	}
+
+	public void testTheLastBucketHasNoBound() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(Long.MAX_VALUE / 2);
+
+		assertEquals(1, histogram.getBucketCounts()[LatencyHistogram.BUCKET_COUNT - 1]);
+		assertEquals(Long.MAX_VALUE, histogram.getPercentile(50));
+	}
+
+	public void testReset() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(10);
+		histogram.reset();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0.0, histogram.getMean());
+		assertEquals(0, histogram.getPercentile(99));
+	}
+}